@@ -0,0 +1,79 @@
+package sc.fiji.colorDeconvolution;
+
+import static org.scijava.ItemIO.INPUT;
+import static org.scijava.ItemIO.OUTPUT;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.B;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.G;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.R;
+
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import net.imagej.Dataset;
+import net.imagej.ImgPlus;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+@Plugin(type = Command.class, headless = true, label = "Color Deconvolution Estimate",
+        description = "This plugin assumes an RGB image as it's input, estimates the vectors of its 2 stains from the image itself and does a color deconvolution on it.")
+public class ColorDeconvolutionIJ2Estimate implements Command {
+
+    @Parameter(type = INPUT, label = "Image to color deconvolve",
+            description = "The image that you would like to apply color deconvolution on. Should be an RGB image!")
+    private Dataset dataset;
+
+    @Parameter(type = INPUT, label = "Samples per tile",
+            description = "The number of pixels sampled from every 512x512 tile of the image to estimate the stains from", min = "1")
+    private Integer samplesPerTile = StainVectorEstimator.DEFAULT_SAMPLES_PER_TILE;
+
+    @Parameter(type = OUTPUT, label = "Stain 1 red (estimated)")
+    private Double r1;
+    @Parameter(type = OUTPUT, label = "Stain 1 green (estimated)")
+    private Double g1;
+    @Parameter(type = OUTPUT, label = "Stain 1 blue (estimated)")
+    private Double b1;
+    @Parameter(type = OUTPUT, label = "Stain 2 red (estimated)")
+    private Double r2;
+    @Parameter(type = OUTPUT, label = "Stain 2 green (estimated)")
+    private Double g2;
+    @Parameter(type = OUTPUT, label = "Stain 2 blue (estimated)")
+    private Double b2;
+
+    @Parameter(type = OUTPUT, label = "Color 1 deconvolved Image")
+    private ImgPlus<UnsignedByteType> deconvolutedImage1;
+    @Parameter(type = OUTPUT, label = "Color 2 deconvolved Image")
+    private ImgPlus<UnsignedByteType> deconvolutedImage2;
+    @Parameter(type = OUTPUT, label = "Remainder",
+            description = "Remainder after the other 2 colors have been subtracted. Should be close to empty")
+    private ImgPlus<UnsignedByteType> deconvolutedImage3;
+
+    public ColorDeconvolutionIJ2Estimate() {
+    }
+
+    /**
+     * Estimate the vectors of the 2 stains from the image, see {@link StainVectorEstimator}, and perform the color
+     * deconvolution with them. The estimated values are output as well, so they can be reused in
+     * {@link ColorDeconvolutionIJ2FromValues}.
+     */
+    @Override
+    public void run() {
+        @SuppressWarnings("unchecked")
+        ImgPlus<UnsignedByteType> imp = (ImgPlus<UnsignedByteType>) dataset.getImgPlus();
+        StainVectorEstimator estimator = new StainVectorEstimator(StainVectorEstimator.DEFAULT_TILE_SIZE,
+                samplesPerTile, StainVectorEstimator.DEFAULT_MAXIMUM_SAMPLES, 0);
+        double[][] stains = estimator.estimate(imp);
+        r1 = stains[0][R];
+        g1 = stains[0][G];
+        b1 = stains[0][B];
+        r2 = stains[1][R];
+        g2 = stains[1][G];
+        b2 = stains[1][B];
+
+        StainMatrixIJ2 sm = new StainMatrixIJ2();
+        sm.init("Estimated stain", r1, g1, b1, r2, g2, b2, 0, 0, 0);
+        ImgPlus<UnsignedByteType>[] imageStacks = sm.compute(imp);
+        deconvolutedImage1 = imageStacks[0];
+        deconvolutedImage2 = imageStacks[1];
+        deconvolutedImage3 = imageStacks[2];
+    }
+}
@@ -0,0 +1,163 @@
+package sc.fiji.colorDeconvolution;
+
+import static org.scijava.ItemIO.INPUT;
+import static org.scijava.ItemIO.OUTPUT;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.B;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.G;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.R;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scijava.command.Command;
+import org.scijava.command.Previewable;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.gui.RoiListener;
+import ij.plugin.frame.RoiManager;
+import net.imagej.Dataset;
+import net.imagej.ImgPlus;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.ColorChannelOrder;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+@Plugin(type = Command.class, label = "Color Deconvolution From ROI",
+        description = "This plugin assumes an RGB image as it's input, measures the vector of each stain from a region per stain in the ROI Manager and does a color deconvolution on it.")
+public class ColorDeconvolutionIJ2FromRoi implements Command, Previewable, RoiListener {
+
+    @Parameter(type = INPUT, label = "Image to color deconvolve",
+            description = "The image that you would like to apply color deconvolution on. Should be an RGB image!")
+    private Dataset dataset;
+
+    @Parameter(type = OUTPUT, label = "Color 1 Red mean")
+    private Double r1;
+    @Parameter(type = OUTPUT, label = "Color 1 Green mean")
+    private Double g1;
+    @Parameter(type = OUTPUT, label = "Color 1 Blue mean")
+    private Double b1;
+    @Parameter(type = OUTPUT, label = "Color 2 Red mean")
+    private Double r2;
+    @Parameter(type = OUTPUT, label = "Color 2 Green mean")
+    private Double g2;
+    @Parameter(type = OUTPUT, label = "Color 2 Blue mean")
+    private Double b2;
+    @Parameter(type = OUTPUT, label = "Color 3 Red mean")
+    private Double r3;
+    @Parameter(type = OUTPUT, label = "Color 3 Green mean")
+    private Double g3;
+    @Parameter(type = OUTPUT, label = "Color 3 Blue mean")
+    private Double b3;
+
+    @Parameter(type = OUTPUT, label = "Color 1 deconvolved Image")
+    private ImgPlus<UnsignedByteType> deconvolutedImage1;
+    @Parameter(type = OUTPUT, label = "Color 2 deconvolved Image")
+    private ImgPlus<UnsignedByteType> deconvolutedImage2;
+    @Parameter(type = OUTPUT, label = "Remainder or color 3",
+            description = "Color 3 deconvolved image or remainder after the other 2 colors have been subtracted. Should be close to empty if there is no third region")
+    private ImgPlus<UnsignedByteType> deconvolutedImage3;
+
+    //Started and stopped by preview and cancel, but read on the event dispatch thread by roiModified
+    private volatile ExecutorService liveMeasurement;
+    //Only the measurement of the latest change of a region is shown, older ones are skipped
+    private final AtomicLong latestChange = new AtomicLong();
+
+    public ColorDeconvolutionIJ2FromRoi() {
+    }
+
+    /**
+     * Measure the vector of each stain from the regions in the ROI Manager, one region per stain in the order of the
+     * manager, see {@link StainVectorMeasurement}, and perform the color deconvolution with them. With 2 regions the
+     * third color is the remainder. The measured values are output as well, so they can be reused in
+     * {@link ColorDeconvolutionIJ2FromValues}.
+     */
+    @Override
+    public void run() {
+        cancel();
+        RoiManager roiManager = RoiManager.getInstance();
+        if (roiManager == null || roiManager.getCount() < 2 || roiManager.getCount() > 3) {
+            throw new IllegalStateException("Add a region of each stain to the ROI Manager, 2 or 3 regions in total");
+        }
+        @SuppressWarnings("unchecked")
+        ImgPlus<UnsignedByteType> imp = (ImgPlus<UnsignedByteType>) dataset.getImgPlus();
+        RandomAccessibleInterval<ARGBType> mergeARGB = Converters.mergeARGB(imp.getImg(), ColorChannelOrder.RGB);
+        Roi[] rois = roiManager.getRoisAsArray();
+        double[][] stains = new double[3][3];
+        for (int stain = 0; stain < rois.length; stain++) {
+            stains[stain] = StainVectorMeasurement.meanOpticalDensity(mergeARGB, rois[stain]);
+        }
+        r1 = stains[0][R];
+        g1 = stains[0][G];
+        b1 = stains[0][B];
+        r2 = stains[1][R];
+        g2 = stains[1][G];
+        b2 = stains[1][B];
+        r3 = stains[2][R];
+        g3 = stains[2][G];
+        b3 = stains[2][B];
+
+        StainMatrixIJ2 sm = new StainMatrixIJ2();
+        sm.init("From ROI", r1, g1, b1, r2, g2, b2, r3, g3, b3);
+        ImgPlus<UnsignedByteType>[] imageStacks = sm.compute(imp);
+        deconvolutedImage1 = imageStacks[0];
+        deconvolutedImage2 = imageStacks[1];
+        deconvolutedImage3 = imageStacks[2];
+    }
+
+    /**
+     * Show the stain vector of a region in the status bar while it is drawn or dragged, so a region with a pure stain
+     * can be found before adding it to the ROI Manager.
+     */
+    @Override
+    public void preview() {
+        if (liveMeasurement == null) {
+            liveMeasurement = Executors.newSingleThreadExecutor();
+            Roi.addRoiListener(this);
+        }
+    }
+
+    /**
+     * Stop showing the stain vectors of regions.
+     */
+    @Override
+    public void cancel() {
+        if (liveMeasurement != null) {
+            Roi.removeRoiListener(this);
+            liveMeasurement.shutdownNow();
+            liveMeasurement = null;
+        }
+    }
+
+    @Override
+    public void roiModified(ImagePlus image, int id) {
+        ExecutorService executor = liveMeasurement;
+        if (image == null || executor == null || executor.isShutdown() || id == RoiListener.DELETED || image.getRoi() == null
+                || !image.getRoi().isArea()) {
+            return;
+        }
+        Roi roi = image.getRoi();
+        long change = latestChange.incrementAndGet();
+        executor.execute(() -> {
+            if (change != latestChange.get()) {
+                return;
+            }
+            double[] stain;
+            try {
+                stain = StainVectorMeasurement.meanOpticalDensity(ImageJFunctions.wrapRGBA(image), roi);
+            } catch (IllegalArgumentException noStain) {
+                return;
+            }
+            if (change == latestChange.get()) {
+                IJ.showStatus(String.format(Locale.ROOT, "Stain vector: %.4f, %.4f, %.4f", stain[R], stain[G], stain[B]));
+            }
+        });
+    }
+}
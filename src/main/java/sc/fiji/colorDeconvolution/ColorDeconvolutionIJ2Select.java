@@ -19,26 +19,33 @@ import static sc.fiji.colorDeconvolution.StainParameters.Constants.RGB_DESCR;
 import static sc.fiji.colorDeconvolution.StainParameters.H_E;
 import static sc.fiji.colorDeconvolution.StainParameters.values;
 
+import java.awt.EventQueue;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.scijava.command.Command;
 import org.scijava.command.CommandService;
+import org.scijava.command.Previewable;
+import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
+import ij.ImagePlus;
 import net.imagej.Dataset;
 import net.imagej.ImgPlus;
+import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 
 @Plugin(type = Command.class, headless = true, menuPath = "Image>Color>Color Deconvolution for ImageJ2", label = "Color Deconvolution Select",
         description = "This plugin assumes an RGB image as it's input and does a 3-color deconvolution on it with the values selected from the pulldown.")
-public class ColorDeconvolutionIJ2Select implements Command {
+public class ColorDeconvolutionIJ2Select implements Command, Previewable {
     private static final String USER_VALUES = "User values";
+    private static final String ESTIMATED_VALUES = "Estimated from image";
 
     @Parameter(type = INPUT, label = " select deconvolution type",
             description = "values used for the deconvolution",
             choices = {H_E_DESCR, H_E2_DESCR, FLG_DESCR, GIEMSA_DESCR, FR_FB_DAB_DESCR, MG_DAB_DESCR, H_E_DAB_DESCR,
-                    H_AEC_DESCR, A_Z_DESCR, MAS_TRI_DESCR, ALC_B_H_DESCR, H_PAS_DESCR, RGB_DESCR, CMY_DESCR, USER_VALUES},
+                    H_AEC_DESCR, A_Z_DESCR, MAS_TRI_DESCR, ALC_B_H_DESCR, H_PAS_DESCR, RGB_DESCR, CMY_DESCR, ESTIMATED_VALUES, USER_VALUES},
             style = "listBox",
             initializer = "default")
     private String selection = H_E_DESCR;
@@ -50,6 +57,9 @@ public class ColorDeconvolutionIJ2Select implements Command {
     @Parameter(type = INPUT)
     private CommandService commandService;
 
+    @Parameter
+    private LogService logService;
+
     @Parameter(type = OUTPUT, label = "Color 1 deconvolved Image")
     private ImgPlus<UnsignedByteType> deconvolutedImage1;
     @Parameter(type = OUTPUT, label = "Color 2 deconvolved Image")
@@ -58,9 +68,80 @@ public class ColorDeconvolutionIJ2Select implements Command {
             description = "Remainder after the other 2 colors have been subtracted. Should be close to empty")
     private ImgPlus<UnsignedByteType> deconvolutedImage3;
 
+    private DeconvolutionPreview deconvolutionPreview;
+    //Only used on the event dispatch thread, like the windows themselves
+    private final ImagePlus[] previewImages = new ImagePlus[3];
+    //Increased by every preview and cancel, so levels of an older preview that arrive late are not shown
+    private final AtomicLong previewRun = new AtomicLong();
+
     public ColorDeconvolutionIJ2Select() {
     }
 
+    /**
+     * Show a quick, downsampled deconvolution with the current selection, that is refined in the background up to the
+     * full resolution. Changing the selection again cancels the refinement and starts over. See
+     * {@link DeconvolutionPreview}. Estimating the stains from the image is done in the background as well.
+     */
+    @Override
+    public void preview() {
+        if (USER_VALUES.equalsIgnoreCase(selection) || dataset == null) {
+            return;
+        }
+        if (deconvolutionPreview == null) {
+            deconvolutionPreview = new DeconvolutionPreview(DeconvolutionPreview.DEFAULT_LATENCY_BUDGET_MILLIS);
+        }
+        String previewSelection = selection;
+        ImgPlus<UnsignedByteType> image = getImage();
+        long run = previewRun.incrementAndGet();
+        deconvolutionPreview.start(image, () -> createStainMatrix(previewSelection, image), new DeconvolutionPreview.Listener() {
+            @Override
+            public void levelComputed(ImgPlus<UnsignedByteType>[] stainImages, int level, boolean fullResolution) {
+                EventQueue.invokeLater(() -> {
+                    if (run == previewRun.get()) {
+                        showPreview(stainImages);
+                    }
+                });
+            }
+
+            @Override
+            public void previewFailed(RuntimeException failure) {
+                logService.error("The preview of " + previewSelection + " failed", failure);
+            }
+        });
+    }
+
+    private void showPreview(ImgPlus<UnsignedByteType>[] stainImages) {
+        for (int stain = 0; stain < 3; stain++) {
+            ImagePlus image = ImageJFunctions.wrap(stainImages[stain], "Preview of color " + (stain + 1));
+            if (previewImages[stain] == null) {
+                previewImages[stain] = image;
+                image.show();
+            } else {
+                previewImages[stain].setProcessor(image.getProcessor());
+            }
+        }
+    }
+
+    /**
+     * Stop the preview and close its windows.
+     */
+    @Override
+    public void cancel() {
+        previewRun.incrementAndGet();
+        if (deconvolutionPreview != null) {
+            deconvolutionPreview.close();
+            deconvolutionPreview = null;
+        }
+        EventQueue.invokeLater(() -> {
+            for (int stain = 0; stain < 3; stain++) {
+                if (previewImages[stain] != null) {
+                    previewImages[stain].close();
+                    previewImages[stain] = null;
+                }
+            }
+        });
+    }
+
     /**
      * This plugin is an implementation of the color deconvolution plugin from ImageJ1
      * It converts the input image (dataset) to three deconvoluted images.
@@ -110,20 +191,32 @@ public class ColorDeconvolutionIJ2Select implements Command {
      */
     @Override
     public void run() {
+        cancel();
         if (USER_VALUES.equalsIgnoreCase(selection)) {
             commandService.run(ColorDeconvolutionIJ2FromValues.class, true, new HashMap<>());
         } else {
-            StainMatrixIJ2 sm = new StainMatrixIJ2();
-            StainParameters values = fromString(selection);
-            sm.init("Our stain", values.rgb1()[0], values.rgb1()[1], values.rgb1()[2], values.rgb2()[0], values.rgb2()[1], values.rgb2()[2], values.rgb3()[0], values.rgb3()[1], values.rgb3()[2]);
-            @SuppressWarnings("unchecked")
-            ImgPlus<UnsignedByteType>[] imageStacks = sm.compute((ImgPlus<UnsignedByteType>) dataset.getImgPlus());
+            ImgPlus<UnsignedByteType>[] imageStacks = createStainMatrix(selection, getImage()).compute(getImage());
             deconvolutedImage1 = imageStacks[0];
             deconvolutedImage2 = imageStacks[1];
             deconvolutedImage3 = imageStacks[2];
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private ImgPlus<UnsignedByteType> getImage() {
+        return (ImgPlus<UnsignedByteType>) dataset.getImgPlus();
+    }
+
+    private static StainMatrixIJ2 createStainMatrix(String selection, ImgPlus<UnsignedByteType> image) {
+        if (ESTIMATED_VALUES.equalsIgnoreCase(selection)) {
+            return new StainVectorEstimator().estimateStainMatrix(image);
+        }
+        StainMatrixIJ2 sm = new StainMatrixIJ2();
+        StainParameters values = fromString(selection);
+        sm.init("Our stain", values.rgb1()[0], values.rgb1()[1], values.rgb1()[2], values.rgb2()[0], values.rgb2()[1], values.rgb2()[2], values.rgb3()[0], values.rgb3()[1], values.rgb3()[2]);
+        return sm;
+    }
+
     public static StainParameters fromString(String text) {
         for (StainParameters stainParameter : values()) {
             if (stainParameter.description().equalsIgnoreCase(text)) {
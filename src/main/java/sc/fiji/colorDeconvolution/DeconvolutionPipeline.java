@@ -0,0 +1,332 @@
+package sc.fiji.colorDeconvolution;
+
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.B;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.G;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.R;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.convertAbsorptionToIntensity;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.convertIntensityToAbsorption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+/**
+ * Chains filters after the deconvolution of one stain, such as smoothing the DAB stain, thresholding it and cleaning
+ * up the resulting mask, without a full pass and a full size image per step.
+ * <p>
+ * The image is processed tile by tile in parallel. Each tile is deconvolved with a halo wide enough for all
+ * neighbourhood filters, and all filters work on that small buffer while it is still in the cache. Only the images
+ * requested with {@link #output()} are allocated in full, by default with the factory of the input image. Borders of
+ * the image are extended by repeating the edge pixels.
+ * <p>
+ * Only 2D RGB images are supported, with the channels as the third dimension. To process a stack or a time series,
+ * run the pipeline on each plane, for example taken with {@link Views#hyperSlice}.
+ * <p>
+ * For example, to get a smoothed DAB image and a mask of the strongly stained areas:
+ * <pre>
+ * List&lt;ImgPlus&lt;UnsignedByteType&gt;&gt; outputs = new DeconvolutionPipeline(stainMatrix, StainMatrixIJ2.STAIN2)
+ *         .gaussian(1.0).output()
+ *         .threshold(0, 120).median(1).output()
+ *         .run(imp);
+ * </pre>
+ */
+public class DeconvolutionPipeline {
+
+    private static final int DEFAULT_TILE_SIZE = 256;
+
+    private final StainMatrixIJ2 stainMatrix;
+    private final int stain;
+    private final int tileSize;
+
+    private final List<Filter> filters = new ArrayList<>();
+    /**
+     * For every output, the number of filters applied before it is taken
+     */
+    private final List<Integer> outputs = new ArrayList<>();
+
+    /**
+     * Create an empty pipeline for one of the stains.
+     *
+     * @param stainMatrix the stain matrix to deconvolve with
+     * @param stain       the stain to process, {@link StainMatrixIJ2#STAIN1}, {@link StainMatrixIJ2#STAIN2} or
+     *                    {@link StainMatrixIJ2#STAIN3}
+     */
+    public DeconvolutionPipeline(StainMatrixIJ2 stainMatrix, int stain) {
+        this(stainMatrix, stain, DEFAULT_TILE_SIZE);
+    }
+
+    DeconvolutionPipeline(StainMatrixIJ2 stainMatrix, int stain, int tileSize) {
+        if (stain < StainMatrixIJ2.STAIN1 || stain > StainMatrixIJ2.STAIN3) {
+            throw new IllegalArgumentException("There is no stain " + stain);
+        }
+        this.stainMatrix = stainMatrix;
+        this.stain = stain;
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Smooth the stain intensities with a gaussian filter.
+     *
+     * @param sigma the standard deviation of the gaussian, in pixels
+     * @return this pipeline
+     */
+    public DeconvolutionPipeline gaussian(double sigma) {
+        if (sigma <= 0) {
+            throw new IllegalArgumentException("Sigma should be positive, but was " + sigma);
+        }
+        float[] kernel = gaussianKernel(sigma);
+        int radius = kernel.length / 2;
+        filters.add(new Filter(radius) {
+            @Override
+            float[] apply(float[] buffer, float[] scratch, int width, int height) {
+                convolveRows(buffer, scratch, width, height, kernel);
+                convolveColumns(scratch, buffer, width, height, kernel);
+                return buffer;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Replace each intensity by the median of its square neighbourhood.
+     *
+     * @param radius the radius of the neighbourhood, 1 gives a 3x3 median
+     * @return this pipeline
+     */
+    public DeconvolutionPipeline median(int radius) {
+        if (radius < 1) {
+            throw new IllegalArgumentException("The radius should be at least 1, but was " + radius);
+        }
+        filters.add(new Filter(radius) {
+            @Override
+            float[] apply(float[] buffer, float[] scratch, int width, int height) {
+                median(buffer, scratch, width, height, radius);
+                return scratch;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Turn the intensities into a binary mask, like ImageJ does: 255 where the intensity lies within the limits and 0
+     * elsewhere. Note that the more stain there is, the lower the intensity.
+     *
+     * @param minimum the lowest intensity in the mask
+     * @param maximum the highest intensity in the mask
+     * @return this pipeline
+     */
+    public DeconvolutionPipeline threshold(double minimum, double maximum) {
+        filters.add(new Filter(0) {
+            @Override
+            float[] apply(float[] buffer, float[] scratch, int width, int height) {
+                for (int i = 0; i < width * height; i++) {
+                    buffer[i] = buffer[i] >= minimum && buffer[i] <= maximum ? 255 : 0;
+                }
+                return buffer;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Keep the result of the filters so far as an output of {@link #run(ImgPlus)}.
+     *
+     * @return this pipeline
+     */
+    public DeconvolutionPipeline output() {
+        outputs.add(filters.size());
+        return this;
+    }
+
+    /**
+     * Deconvolve the image and run the filters on the chosen stain. The outputs are created with the factory of the
+     * image.
+     *
+     * @param imp : The ImagePlus that will be deconvolved. RGB only, with the channels as the third dimension.
+     * @return an 8-bit image for every call to {@link #output()}, in the same order
+     */
+    public List<ImgPlus<UnsignedByteType>> run(ImgPlus<UnsignedByteType> imp) {
+        ImgFactory<UnsignedByteType> factory = imp.getImg().factory();
+        return run(imp, (output, dimensions) -> factory.create(dimensions));
+    }
+
+    /**
+     * Deconvolve the image and run the filters on the chosen stain.
+     *
+     * @param imp     : The ImagePlus that will be deconvolved. RGB only, with the channels as the third dimension.
+     * @param factory creates the 8-bit output images. It is passed the index of the output instead of a stain, so
+     *                outputs of the same stain are told apart.
+     * @return an 8-bit image for every call to {@link #output()}, in the same order
+     */
+    public List<ImgPlus<UnsignedByteType>> run(ImgPlus<UnsignedByteType> imp, StainImgFactory factory) {
+        if (imp.numDimensions() != 3) {
+            throw new IllegalArgumentException("Only 2D RGB images are supported, but the image has "
+                    + imp.numDimensions() + " dimensions");
+        }
+        double[] q = stainMatrix.initComputation(true);
+        double[] row = Arrays.copyOfRange(q, stain * 3, stain * 3 + 3);
+
+        @SuppressWarnings("unchecked")
+        RandomAccessibleInterval<UnsignedByteType>[] channels = new RandomAccessibleInterval[3];
+        for (int channel = R; channel <= B; channel++) {
+            channels[channel] = Views.zeroMin(Views.hyperSlice(imp.getImg(), 2, imp.min(2) + channel));
+        }
+
+        int lastFilter = outputs.isEmpty() ? 0 : outputs.get(outputs.size() - 1);
+        int halo = 0;
+        for (int filter = 0; filter < lastFilter; filter++) {
+            halo += filters.get(filter).radius;
+        }
+
+        List<Img<UnsignedByteType>> images = new ArrayList<>();
+        for (int output = 0; output < outputs.size(); output++) {
+            images.add(factory.create(output, new long[]{imp.dimension(0), imp.dimension(1)}));
+        }
+        int finalHalo = halo;
+        Tiling.tiles(channels[R], tileSize, tileSize).parallelStream()
+                .forEach(tile -> process(tile, finalHalo, channels, row, images));
+
+        List<ImgPlus<UnsignedByteType>> result = new ArrayList<>();
+        for (Img<UnsignedByteType> image : images) {
+            result.add(new ImgPlus<>(image));
+        }
+        return result;
+    }
+
+    private void process(Interval tile, int halo, RandomAccessibleInterval<UnsignedByteType>[] channels, double[] row,
+                         List<Img<UnsignedByteType>> images) {
+        // The tile with its halo, cut off at the image borders
+        long minX = Math.max(channels[R].min(0), tile.min(0) - halo);
+        long minY = Math.max(channels[R].min(1), tile.min(1) - halo);
+        long maxX = Math.min(channels[R].max(0), tile.max(0) + halo);
+        long maxY = Math.min(channels[R].max(1), tile.max(1) + halo);
+        FinalInterval region = new FinalInterval(new long[]{minX, minY}, new long[]{maxX, maxY});
+        int width = (int) region.dimension(0);
+        int height = (int) region.dimension(1);
+
+        float[] buffer = new float[width * height];
+        float[] scratch = new float[width * height];
+        Cursor<UnsignedByteType> red = Views.flatIterable(Views.interval(channels[R], region)).cursor();
+        Cursor<UnsignedByteType> green = Views.flatIterable(Views.interval(channels[G], region)).cursor();
+        Cursor<UnsignedByteType> blue = Views.flatIterable(Views.interval(channels[B], region)).cursor();
+        for (int i = 0; i < buffer.length; i++) {
+            double absorption = convertIntensityToAbsorption(red.next().get()) * row[R]
+                    + convertIntensityToAbsorption(green.next().get()) * row[G]
+                    + convertIntensityToAbsorption(blue.next().get()) * row[B];
+            buffer[i] = convertAbsorptionToIntensity(absorption);
+        }
+
+        int offsetX = (int) (tile.min(0) - minX);
+        int offsetY = (int) (tile.min(1) - minY);
+        int applied = 0;
+        for (int output = 0; output < outputs.size(); output++) {
+            for (; applied < outputs.get(output); applied++) {
+                float[] result = filters.get(applied).apply(buffer, scratch, width, height);
+                if (result != buffer) {
+                    scratch = buffer;
+                    buffer = result;
+                }
+            }
+            Cursor<UnsignedByteType> out = Views.flatIterable(Views.interval(images.get(output), tile)).cursor();
+            for (int y = 0; y < tile.dimension(1); y++) {
+                int index = (offsetY + y) * width + offsetX;
+                for (int x = 0; x < tile.dimension(0); x++) {
+                    out.next().set(Math.round(Math.max(0f, Math.min(255f, buffer[index++]))));
+                }
+            }
+        }
+    }
+
+    static float[] gaussianKernel(double sigma) {
+        int radius = (int) Math.ceil(3 * sigma);
+        float[] kernel = new float[2 * radius + 1];
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            double value = Math.exp(-(i * i) / (2 * sigma * sigma));
+            kernel[i + radius] = (float) value;
+            sum += value;
+        }
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] /= sum;
+        }
+        return kernel;
+    }
+
+    private static void convolveRows(float[] source, float[] target, int width, int height, float[] kernel) {
+        int radius = kernel.length / 2;
+        for (int y = 0; y < height; y++) {
+            int start = y * width;
+            for (int x = 0; x < width; x++) {
+                float sum = 0;
+                for (int k = -radius; k <= radius; k++) {
+                    sum += kernel[k + radius] * source[start + clamp(x + k, width)];
+                }
+                target[start + x] = sum;
+            }
+        }
+    }
+
+    private static void convolveColumns(float[] source, float[] target, int width, int height, float[] kernel) {
+        int radius = kernel.length / 2;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float sum = 0;
+                for (int k = -radius; k <= radius; k++) {
+                    sum += kernel[k + radius] * source[clamp(y + k, height) * width + x];
+                }
+                target[y * width + x] = sum;
+            }
+        }
+    }
+
+    static void median(float[] source, float[] target, int width, int height, int radius) {
+        int size = 2 * radius + 1;
+        float[] neighbourhood = new float[size * size];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int n = 0;
+                for (int dy = -radius; dy <= radius; dy++) {
+                    int start = clamp(y + dy, height) * width;
+                    for (int dx = -radius; dx <= radius; dx++) {
+                        neighbourhood[n++] = source[start + clamp(x + dx, width)];
+                    }
+                }
+                Arrays.sort(neighbourhood);
+                target[y * width + x] = neighbourhood[neighbourhood.length / 2];
+            }
+        }
+    }
+
+    private static int clamp(int position, int size) {
+        return position < 0 ? 0 : position >= size ? size - 1 : position;
+    }
+
+    /**
+     * A filter on a buffer of intensities, looking at most radius pixels away.
+     */
+    private abstract static class Filter {
+
+        final int radius;
+
+        Filter(int radius) {
+            this.radius = radius;
+        }
+
+        /**
+         * @param buffer  the intensities to filter
+         * @param scratch a buffer of the same size that may be overwritten
+         * @return the buffer holding the filtered intensities, either of the two
+         */
+        abstract float[] apply(float[] buffer, float[] scratch, int width, int height);
+    }
+}
@@ -0,0 +1,228 @@
+package sc.fiji.colorDeconvolution;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import net.imagej.ImgPlus;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Quick previews of a color deconvolution for interactive use, such as trying stain matrices on a large slide.
+ * <p>
+ * A preview starts at the largest downsampled level of the image that is expected to be deconvolved within the latency
+ * budget, and then refines level by level in the background until it reaches the full resolution. Every level is
+ * handed to a {@link Listener} when it is done. The expected duration is based on the throughput measured on earlier
+ * levels. Starting a new preview, for example because another stain matrix was selected, cancels the previous one.
+ * <p>
+ * The levels are either existing pyramid levels of the image, or downsampled views of it that skip pixels, so no extra
+ * copies of the image are made.
+ */
+public class DeconvolutionPreview implements Closeable {
+
+    public static final long DEFAULT_LATENCY_BUDGET_MILLIS = 100;
+
+    /**
+     * Downsampled levels are made until a level has no more than this many pixels
+     */
+    private static final long SMALLEST_LEVEL_PIXELS = 256 * 256;
+
+    /**
+     * The throughput assumed until it has been measured
+     */
+    private static final double INITIAL_PIXELS_PER_MILLISECOND = 10000;
+
+    /**
+     * Receives the deconvolved levels of a preview, from coarse to fine, or the failure of the preview.
+     */
+    @FunctionalInterface
+    public interface Listener {
+
+        /**
+         * @param stainImages    the three 8-bit images of the level
+         * @param level          the level that was deconvolved, where 0 is the full resolution
+         * @param fullResolution whether this is the final level of the preview
+         */
+        void levelComputed(ImgPlus<UnsignedByteType>[] stainImages, int level, boolean fullResolution);
+
+        /**
+         * Called when the preview fails, for example because the stain matrix cannot be created, after which no more
+         * levels follow. The failure is thrown from the {@link Future} of the preview as well.
+         *
+         * @param failure what went wrong
+         */
+        default void previewFailed(RuntimeException failure) {
+        }
+    }
+
+    private final long latencyBudgetMillis;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Color deconvolution preview");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile double pixelsPerMillisecond = INITIAL_PIXELS_PER_MILLISECOND;
+    private AtomicBoolean cancelled = new AtomicBoolean();
+    private Future<?> current;
+
+    /**
+     * @param latencyBudgetMillis the time in which the first level of a preview should be ready
+     */
+    public DeconvolutionPreview(long latencyBudgetMillis) {
+        this.latencyBudgetMillis = latencyBudgetMillis;
+    }
+
+    /**
+     * Start a preview of an RGB image, downsampling it by factors of two.
+     *
+     * @param imp         : The ImagePlus that will be deconvolved. RGB only, with the channels as the third dimension.
+     * @param stainMatrix the stain matrix to deconvolve with
+     * @param listener    receives each level when it is done, on a background thread
+     * @return the running preview, which can also be cancelled with {@link #cancel()}
+     */
+    public Future<?> start(ImgPlus<UnsignedByteType> imp, StainMatrixIJ2 stainMatrix, Listener listener) {
+        return start(levels(imp), stainMatrix, listener);
+    }
+
+    /**
+     * Start a preview of an RGB image, downsampling it by factors of two, with a stain matrix that takes a while to
+     * create, such as one estimated from the image. The stain matrix is created on the background thread, so the caller
+     * does not wait for it.
+     *
+     * @param imp         : The ImagePlus that will be deconvolved. RGB only, with the channels as the third dimension.
+     * @param stainMatrix creates the stain matrix to deconvolve with, on the background thread
+     * @param listener    receives each level when it is done, on a background thread
+     * @return the running preview, which can also be cancelled with {@link #cancel()}
+     */
+    public Future<?> start(ImgPlus<UnsignedByteType> imp, Supplier<StainMatrixIJ2> stainMatrix, Listener listener) {
+        return start(levels(imp), () -> stainMatrix.get().toProjection(), listener);
+    }
+
+    /**
+     * Start a preview of an image with existing pyramid levels.
+     *
+     * @param levels      the levels of the image, from the full resolution to the coarsest level, each with the color
+     *                    channels in its last dimension
+     * @param stainMatrix the stain matrix to deconvolve with
+     * @param listener    receives each level when it is done, on a background thread
+     * @return the running preview, which can also be cancelled with {@link #cancel()}
+     */
+    public Future<?> start(List<? extends RandomAccessibleInterval<UnsignedByteType>> levels,
+                           StainMatrixIJ2 stainMatrix, Listener listener) {
+        StainProjection projection = stainMatrix.toProjection();
+        return start(levels, () -> projection, listener);
+    }
+
+    private synchronized Future<?> start(List<? extends RandomAccessibleInterval<UnsignedByteType>> levels,
+                                         Supplier<StainProjection> projectionSupplier, Listener listener) {
+        cancel();
+        AtomicBoolean cancelledRun = new AtomicBoolean();
+        cancelled = cancelledRun;
+        current = executor.submit(() -> {
+            try {
+                refine(levels, projectionSupplier.get(), listener, cancelledRun);
+            } catch (RuntimeException e) {
+                // Like the levels, a failure is only reported while the preview has not been cancelled
+                synchronized (cancelledRun) {
+                    if (!cancelledRun.get()) {
+                        listener.previewFailed(e);
+                    }
+                }
+                throw e;
+            }
+        });
+        return current;
+    }
+
+    private void refine(List<? extends RandomAccessibleInterval<UnsignedByteType>> levels, StainProjection projection,
+                        Listener listener, AtomicBoolean cancelledRun) {
+        for (int level = firstLevel(levels); level >= 0 && !cancelledRun.get(); level--) {
+            RandomAccessibleInterval<UnsignedByteType> image = levels.get(level);
+            long start = System.nanoTime();
+            ImgPlus<UnsignedByteType>[] stainImages;
+            try {
+                stainImages = projection.compute(image,
+                        (stain, dimensions) -> ArrayImgs.unsignedBytes(dimensions), true, cancelledRun::get);
+            } catch (CancellationException e) {
+                return;
+            }
+            double millis = Math.max(1.0, (System.nanoTime() - start) / 1e6);
+            pixelsPerMillisecond = pixels(image) / millis;
+            // Checked and called while holding the lock cancel takes, so once cancel returns no more levels arrive
+            synchronized (cancelledRun) {
+                if (!cancelledRun.get()) {
+                    listener.levelComputed(stainImages, level, level == 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancel the running preview, if any. The listener is not called anymore for it once this returns.
+     */
+    public synchronized void cancel() {
+        AtomicBoolean cancelledRun = cancelled;
+        synchronized (cancelledRun) {
+            cancelledRun.set(true);
+        }
+        if (current != null) {
+            current.cancel(false);
+        }
+    }
+
+    /**
+     * Cancel the running preview and stop the background thread.
+     */
+    @Override
+    public void close() {
+        cancel();
+        executor.shutdown();
+    }
+
+    /**
+     * @return the image and views of it downsampled by factors of two, down to a small level
+     */
+    private static List<RandomAccessibleInterval<UnsignedByteType>> levels(ImgPlus<UnsignedByteType> imp) {
+        List<RandomAccessibleInterval<UnsignedByteType>> levels = new ArrayList<>();
+        long[] steps = new long[imp.numDimensions()];
+        Arrays.fill(steps, 1);
+        for (long factor = 1; ; factor *= 2) {
+            steps[0] = factor;
+            steps[1] = factor;
+            RandomAccessibleInterval<UnsignedByteType> level = factor == 1 ? imp.getImg() : Views.subsample(imp.getImg(), steps);
+            levels.add(level);
+            if (pixels(level) <= SMALLEST_LEVEL_PIXELS || level.dimension(0) == 1 || level.dimension(1) == 1) {
+                return levels;
+            }
+        }
+    }
+
+    /**
+     * @return the finest level that is expected to be done within the latency budget, or the coarsest level if none is
+     */
+    private int firstLevel(List<? extends RandomAccessibleInterval<UnsignedByteType>> levels) {
+        double budgetPixels = latencyBudgetMillis * pixelsPerMillisecond;
+        for (int level = 0; level < levels.size(); level++) {
+            if (pixels(levels.get(level)) <= budgetPixels) {
+                return level;
+            }
+        }
+        return levels.size() - 1;
+    }
+
+    private static long pixels(RandomAccessibleInterval<?> image) {
+        return Intervals.numElements(image) / image.dimension(image.numDimensions() - 1);
+    }
+}
@@ -0,0 +1,34 @@
+package sc.fiji.colorDeconvolution;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+/**
+ * The output of {@link StainMatrixIJ2#computeWithReconstructions(ImgPlus, StainImgFactory, int[]...)}: the three 8-bit
+ * stain images and an RGB reconstruction for each requested subset of stains.
+ */
+public class DeconvolutionResult {
+
+    private final ImgPlus<UnsignedByteType>[] stainImages;
+    private final ImgPlus<ARGBType>[] reconstructions;
+
+    DeconvolutionResult(ImgPlus<UnsignedByteType>[] stainImages, ImgPlus<ARGBType>[] reconstructions) {
+        this.stainImages = stainImages;
+        this.reconstructions = reconstructions;
+    }
+
+    /**
+     * @return the three 8-bit images, as returned by {@link StainMatrixIJ2#compute(ImgPlus)}
+     */
+    public ImgPlus<UnsignedByteType>[] getStainImages() {
+        return stainImages;
+    }
+
+    /**
+     * @return an RGB image per requested subset of stains, in the order the subsets were given
+     */
+    public ImgPlus<ARGBType>[] getReconstructions() {
+        return reconstructions;
+    }
+}
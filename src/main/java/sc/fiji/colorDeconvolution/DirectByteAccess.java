@@ -0,0 +1,75 @@
+package sc.fiji.colorDeconvolution;
+
+import java.nio.ByteBuffer;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.ByteAccess;
+
+/**
+ * A {@link ByteAccess} backed by a {@link ByteBuffer} instead of a Java byte[]. When the buffer is direct or memory
+ * mapped, the pixels of the image using this access live outside of the Java heap, so they can be handed to native
+ * code or Python without copying.
+ * <p>
+ * Use {@link StainImgFactory#direct()} or {@link StainImgFactory#memoryMapped(java.nio.file.Path, String)} to have
+ * {@link StainMatrixIJ2#compute(net.imagej.ImgPlus, StainImgFactory)} write its output into such buffers.
+ */
+public class DirectByteAccess implements ByteAccess {
+
+    private final ByteBuffer buffer;
+
+    /**
+     * Allocate a new direct buffer of the given size.
+     *
+     * @param numEntities the number of bytes to allocate
+     */
+    public DirectByteAccess(int numEntities) {
+        this(ByteBuffer.allocateDirect(numEntities));
+    }
+
+    /**
+     * Wrap an existing buffer, for example a {@link java.nio.MappedByteBuffer}. Indexing is absolute, so the position
+     * and limit of the buffer are ignored.
+     *
+     * @param buffer the buffer to read and write pixels from
+     */
+    public DirectByteAccess(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public byte getValue(int index) {
+        return buffer.get(index);
+    }
+
+    @Override
+    public void setValue(int index, byte value) {
+        buffer.put(index, value);
+    }
+
+    /**
+     * @return a duplicate of the underlying buffer, sharing its content but with its own position and limit
+     */
+    public ByteBuffer getBuffer() {
+        return buffer.duplicate();
+    }
+
+    /**
+     * Get the buffer holding the pixels of an image created by {@link StainImgFactory#direct()} or
+     * {@link StainImgFactory#memoryMapped(java.nio.file.Path, String)}. The pixels are stored in flat iteration order,
+     * so x varies fastest.
+     *
+     * @param img the image to get the buffer for
+     * @return the buffer holding the pixels of the image
+     * @throws IllegalArgumentException when the image is not backed by a {@link DirectByteAccess}
+     */
+    public static ByteBuffer bufferOf(Img<?> img) {
+        if (img instanceof ArrayImg) {
+            Object access = ((ArrayImg<?, ?>) img).update(null);
+            if (access instanceof DirectByteAccess) {
+                return ((DirectByteAccess) access).getBuffer();
+            }
+        }
+        throw new IllegalArgumentException("Image is not backed by a direct buffer: " + img);
+    }
+}
@@ -0,0 +1,87 @@
+package sc.fiji.colorDeconvolution;
+
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.ABSORPTION_PER_OPTICAL_DENSITY;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.convertIntensityToAbsorption;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.ARGBType;
+
+/**
+ * Collects a bounded random sample of the absorptions of tissue pixels in an RGB image, without visiting every pixel.
+ * <p>
+ * The image is split into tiles and a fixed number of random pixels is drawn from each tile, so every part of the slide
+ * is represented (stratified sampling). Pixels that are too bright to be tissue are dropped. The remaining pixels are
+ * kept in a reservoir of fixed capacity, so memory use does not depend on the size of the image.
+ */
+class OpticalDensitySampler {
+
+    /**
+     * Pixels with an optical density below this value in any channel are considered background, as in Macenko et al.
+     */
+    static final double BACKGROUND_OPTICAL_DENSITY = 0.15;
+
+    private final long tileSize;
+    private final int samplesPerTile;
+    private final int capacity;
+    private final long seed;
+
+    /**
+     * @param tileSize       the width and height of the tiles to draw samples from
+     * @param samplesPerTile the number of pixels to draw from each tile
+     * @param capacity       the maximum number of pixels to keep
+     * @param seed           the seed of the random generator, so a sample can be repeated
+     */
+    OpticalDensitySampler(long tileSize, int samplesPerTile, int capacity, long seed) {
+        this.tileSize = tileSize;
+        this.samplesPerTile = samplesPerTile;
+        this.capacity = capacity;
+        this.seed = seed;
+    }
+
+    /**
+     * Sample the absorptions of tissue pixels.
+     *
+     * @param image the RGB image to sample
+     * @return the absorbed red, green and blue values of the sampled pixels, one pixel after the other, as returned by
+     * {@link StainMatrixIJ2#convertIntensityToAbsorption(int)}
+     */
+    double[] sample(RandomAccessibleInterval<ARGBType> image) {
+        double threshold = BACKGROUND_OPTICAL_DENSITY * ABSORPTION_PER_OPTICAL_DENSITY;
+        Random random = new Random(seed);
+        double[] reservoir = new double[capacity * 3];
+        long seen = 0;
+
+        RandomAccess<ARGBType> access = image.randomAccess();
+        for (Interval tile : Tiling.tiles(image, tileSize, tileSize)) {
+            long width = tile.dimension(0);
+            long height = tile.dimension(1);
+            int samples = (int) Math.min(samplesPerTile, width * height);
+            for (int i = 0; i < samples; i++) {
+                access.setPosition(tile.min(0) + (long) (random.nextDouble() * width), 0);
+                access.setPosition(tile.min(1) + (long) (random.nextDouble() * height), 1);
+                int rgba = access.get().get();
+                double absorbedR = convertIntensityToAbsorption(ARGBType.red(rgba));
+                double absorbedG = convertIntensityToAbsorption(ARGBType.green(rgba));
+                double absorbedB = convertIntensityToAbsorption(ARGBType.blue(rgba));
+                if (absorbedR < threshold || absorbedG < threshold || absorbedB < threshold) {
+                    continue;
+                }
+                // Reservoir sampling: every tissue pixel seen so far has the same chance of being kept
+                long slot = seen < capacity ? seen : (long) (random.nextDouble() * (seen + 1));
+                seen++;
+                if (slot < capacity) {
+                    int start = (int) slot * 3;
+                    reservoir[start] = absorbedR;
+                    reservoir[start + 1] = absorbedG;
+                    reservoir[start + 2] = absorbedB;
+                }
+            }
+        }
+        return Arrays.copyOf(reservoir, (int) Math.min(seen, capacity) * 3);
+    }
+}
@@ -0,0 +1,349 @@
+package sc.fiji.colorDeconvolution;
+
+import static sc.fiji.colorDeconvolution.TiffStripReader.PHOTOMETRIC_RGB;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deconvolves an RGB TIFF file with several worker processes, on one machine or on several machines that share a
+ * directory. The image is cut into square tiles, and every worker claims tiles through the shared directory until all
+ * tiles are done. The workers do not talk to each other, so workers can be added or stopped at any time.
+ * <p>
+ * The shared directory holds:
+ * <ul>
+ * <li>manifest.properties, with the input, the stain matrix and the size of the image and the tiles, so all workers
+ * cut the same image the same way. The first worker publishes it, which only one worker can do, and every worker
+ * checks its own settings against it before claiming tiles.</li>
+ * <li>leases/, with a file per tile that is being worked on. A worker claims a tile by creating its lease file, which
+ * only one worker can do. The lease expires after a fixed time, counted from the last modification of the file, which
+ * the worker renews while it works on the tile. Once expired, for example because the worker crashed, another worker
+ * moves it away and claims the tile again. When the lease it moved away turns out to be a fresh one, because another
+ * worker took over the tile in the meantime, it is put back.</li>
+ * <li>chunks/, with a file per finished tile holding the three stains, one after the other, each with its pixels in row
+ * major order. Chunks are written to a temporary file first and then moved into place atomically, so a chunk is either
+ * complete or absent.</li>
+ * </ul>
+ * Two workers may still end up deconvolving the same tile, for example when a worker stalls for longer than the lease
+ * time and then releases the lease of the worker that took over, or when a third worker claims the tile while a fresh
+ * lease is being put back. This only wastes time: both write the same chunk.
+ * <p>
+ * When all tiles are done, {@link #assemble(Path, Path, Path)} combines the chunks into three 8-bit TIFF files. The
+ * clocks of the machines should agree to well within the lease time.
+ */
+public class ShardedDeconvolution {
+
+    public static final int DEFAULT_TILE_SIZE = 1024;
+    public static final long DEFAULT_LEASE_MILLIS = 10 * 60 * 1000;
+
+    private static final String MANIFEST = "manifest.properties";
+    private static final String LEASES = "leases";
+    private static final String CHUNKS = "chunks";
+
+    private final StainMatrixIJ2 stainMatrix;
+    private final Path directory;
+    private final int tileSize;
+    private final long leaseMillis;
+    private final String workerId;
+
+    /**
+     * @param stainMatrix the initialized stain matrix to deconvolve with
+     * @param directory   the directory shared by all workers
+     * @param tileSize    the width and height of a tile, the same for all workers
+     * @param leaseMillis the time after which the claim on a tile expires unless it is renewed. The worker holding it
+     *                    renews it every quarter of this time
+     */
+    public ShardedDeconvolution(StainMatrixIJ2 stainMatrix, Path directory, int tileSize, long leaseMillis) {
+        this.stainMatrix = stainMatrix;
+        this.directory = directory;
+        this.tileSize = tileSize;
+        this.leaseMillis = leaseMillis;
+        this.workerId = ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9.-]", "_")
+                + "-" + UUID.randomUUID();
+    }
+
+    /**
+     * Claim and deconvolve tiles of the input until all tiles are done, by this worker or by others. When the
+     * remaining tiles are claimed by other workers, this worker waits until they are done or their claims expire.
+     *
+     * @param input the RGB TIFF file to deconvolve, the same for all workers
+     * @return the number of tiles deconvolved by this worker
+     * @throws IOException when the input cannot be read or the shared directory cannot be written
+     */
+    public int work(Path input) throws IOException {
+        double[] q = stainMatrix.initComputation(false);
+        int deconvolved = 0;
+        ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Lease renewal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long renewalMillis = Math.max(1, leaseMillis / 4);
+        try (TiffStripReader reader = new TiffStripReader(input)) {
+            if (reader.getPhotometricInterpretation() != PHOTOMETRIC_RGB || reader.getSamplesPerPixel() < 3) {
+                throw new IOException(input + " is not an RGB image");
+            }
+            int width = reader.getWidth();
+            int height = reader.getHeight();
+            Properties manifest = new Properties();
+            manifest.setProperty("input", input.getFileName().toString());
+            manifest.setProperty("inputSize", String.valueOf(Files.size(input)));
+            manifest.setProperty("stainMatrix", Arrays.toString(q));
+            manifest.setProperty("width", String.valueOf(width));
+            manifest.setProperty("height", String.valueOf(height));
+            manifest.setProperty("tileSize", String.valueOf(tileSize));
+            writeManifest(manifest);
+            Files.createDirectories(directory.resolve(LEASES));
+            Files.createDirectories(directory.resolve(CHUNKS));
+
+            int columns = (width + tileSize - 1) / tileSize;
+            int rows = (height + tileSize - 1) / tileSize;
+            int samplesPerPixel = reader.getSamplesPerPixel();
+            byte[] rgb = new byte[tileSize * tileSize * samplesPerPixel];
+            byte[][] stains = new byte[3][tileSize * tileSize];
+            byte[] chunk = new byte[tileSize * tileSize * 3];
+            while (true) {
+                boolean claimedByOthers = false;
+                for (int row = 0; row < rows; row++) {
+                    for (int column = 0; column < columns; column++) {
+                        String tile = "tile-" + column + "-" + row;
+                        if (Files.exists(chunkFile(tile))) {
+                            continue;
+                        }
+                        if (!claim(tile)) {
+                            claimedByOthers = true;
+                            continue;
+                        }
+                        Path lease = leaseFile(tile);
+                        if (Files.exists(chunkFile(tile))) {
+                            // Finished by another worker, which released its lease just before this worker claimed it
+                            Files.deleteIfExists(lease);
+                            continue;
+                        }
+                        ScheduledFuture<?> renewal = renewer.scheduleWithFixedDelay(() -> renew(lease),
+                                renewalMillis, renewalMillis, TimeUnit.MILLISECONDS);
+                        try {
+                            int x = column * tileSize;
+                            int y = row * tileSize;
+                            int w = Math.min(tileSize, width - x);
+                            int h = Math.min(tileSize, height - y);
+                            reader.readRegion(x, y, w, h, rgb);
+                            int pixels = w * h;
+                            StainMatrixIJ2.deconvolveInterleaved(q, rgb, samplesPerPixel, pixels, stains[0], stains[1], stains[2]);
+                            for (int stain = 0; stain < 3; stain++) {
+                                System.arraycopy(stains[stain], 0, chunk, stain * pixels, pixels);
+                            }
+                            publish(tile, chunk, 3 * pixels);
+                        } finally {
+                            renewal.cancel(false);
+                        }
+                        Files.deleteIfExists(lease);
+                        deconvolved++;
+                    }
+                }
+                if (!claimedByOthers) {
+                    return deconvolved;
+                }
+                try {
+                    Thread.sleep(Math.max(10, Math.min(1000, leaseMillis / 10)));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for other workers", e);
+                }
+            }
+        } finally {
+            renewer.shutdownNow();
+        }
+    }
+
+    /**
+     * Combine the chunks of all tiles into three 8-bit TIFF files. Existing output files are overwritten.
+     *
+     * @param output1 the file to write stain 1 to
+     * @param output2 the file to write stain 2 to
+     * @param output3 the file to write stain 3 to
+     * @throws IOException when a chunk is missing, so not all tiles are done, or an output cannot be written
+     */
+    public void assemble(Path output1, Path output2, Path output3) throws IOException {
+        Properties manifest = readManifest();
+        if (manifest == null) {
+            throw new IOException("No " + MANIFEST + " in " + directory);
+        }
+        int width = Integer.parseInt(manifest.getProperty("width"));
+        int height = Integer.parseInt(manifest.getProperty("height"));
+        int size = Integer.parseInt(manifest.getProperty("tileSize"));
+        int columns = (width + size - 1) / size;
+
+        try (TiffStripWriter writer1 = new TiffStripWriter(output1, width, height, 1, size);
+             TiffStripWriter writer2 = new TiffStripWriter(output2, width, height, 1, size);
+             TiffStripWriter writer3 = new TiffStripWriter(output3, width, height, 1, size)) {
+            TiffStripWriter[] writers = {writer1, writer2, writer3};
+            byte[][] strips = new byte[3][width * size];
+            for (int y = 0; y < height; y += size) {
+                int h = Math.min(size, height - y);
+                for (int column = 0; column < columns; column++) {
+                    int x = column * size;
+                    int w = Math.min(size, width - x);
+                    byte[] chunk = Files.readAllBytes(chunkFile("tile-" + column + "-" + (y / size)));
+                    for (int stain = 0; stain < 3; stain++) {
+                        for (int row = 0; row < h; row++) {
+                            System.arraycopy(chunk, stain * w * h + row * w, strips[stain], row * width + x, w);
+                        }
+                    }
+                }
+                for (int stain = 0; stain < 3; stain++) {
+                    writers[stain].writeRows(strips[stain], h);
+                }
+            }
+        }
+    }
+
+    /**
+     * Try to claim a tile, taking over the claim of another worker when it has expired.
+     *
+     * @return whether this worker now holds the lease on the tile
+     */
+    private boolean claim(String tile) throws IOException {
+        Path lease = leaseFile(tile);
+        if (createLease(lease)) {
+            return true;
+        }
+        Path expired = lease.resolveSibling(lease.getFileName() + ".expired-" + workerId);
+        try {
+            FileTime modified = Files.getLastModifiedTime(lease);
+            if (modified.toMillis() + leaseMillis > System.currentTimeMillis()) {
+                return false;
+            }
+            Files.move(lease, expired, StandardCopyOption.ATOMIC_MOVE);
+            // Between reading the time and moving, another worker may have moved the expired lease away and created a
+            // fresh one, which is the one this worker moved. Give it back instead of taking the tile from its owner.
+            if (!Files.getLastModifiedTime(expired).equals(modified)) {
+                try {
+                    Files.move(expired, lease);
+                } catch (FileAlreadyExistsException claimedAgain) {
+                    Files.deleteIfExists(expired);
+                }
+                return false;
+            }
+            Files.deleteIfExists(expired);
+        } catch (NoSuchFileException finishedOrTakenOver) {
+            // Released or taken over by another worker, so try to create it again
+        }
+        return createLease(lease);
+    }
+
+    private boolean createLease(Path lease) throws IOException {
+        try {
+            Files.createFile(lease);
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+        Files.write(lease, workerId.getBytes(StandardCharsets.UTF_8));
+        return true;
+    }
+
+    /**
+     * Move the expiry of a lease this worker holds forward. A lease that is gone has been released or taken over, in
+     * which case the tile is simply deconvolved twice.
+     */
+    private static void renew(Path lease) {
+        try {
+            Files.setLastModifiedTime(lease, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Expired and taken over, or already released
+        }
+    }
+
+    private void publish(String tile, byte[] chunk, int length) throws IOException {
+        Path temporary = directory.resolve(CHUNKS).resolve(tile + ".raw." + workerId + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            out.write(chunk, 0, length);
+        }
+        Files.move(temporary, chunkFile(tile), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Publish the manifest unless another worker did so first, and check that the published manifest is the one of this
+     * worker. Linking fails when the manifest exists, so of several workers that start at the same time only one
+     * publishes, and the others check against its manifest.
+     */
+    private void writeManifest(Properties manifest) throws IOException {
+        Files.createDirectories(directory);
+        if (readManifest() == null) {
+            Path temporary = directory.resolve(MANIFEST + "." + workerId + ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(temporary)) {
+                    manifest.store(out, "Sharded color deconvolution");
+                }
+                Files.createLink(directory.resolve(MANIFEST), temporary);
+            } catch (FileAlreadyExistsException publishedByAnotherWorker) {
+                // Checked below like any existing manifest
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+        Properties published = readManifest();
+        if (!manifest.equals(published)) {
+            throw new IOException(directory + " is used for another input, stain matrix or tile size: " + published);
+        }
+    }
+
+    private Properties readManifest() throws IOException {
+        Path file = directory.resolve(MANIFEST);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        Properties manifest = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            manifest.load(in);
+        }
+        return manifest;
+    }
+
+    private Path leaseFile(String tile) {
+        return directory.resolve(LEASES).resolve(tile + ".lease");
+    }
+
+    private Path chunkFile(String tile) {
+        return directory.resolve(CHUNKS).resolve(tile + ".raw");
+    }
+
+    /**
+     * Run a worker. Start as many as needed, on any machine that can reach the input and the shared directory.
+     * <p>
+     * Arguments: the input TIFF file, the shared directory, the stain matrix in the format of
+     * {@link StainMatrixIJ2#init(String)} and optionally the tile size and the lease time in milliseconds.
+     *
+     * @param args the command line arguments
+     * @throws IOException when the input cannot be read or the shared directory cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: ShardedDeconvolution <input.tif> <shared directory> <name,r1,g1,b1,r2,g2,b2,r3,g3,b3> [tile size] [lease milliseconds]");
+            System.exit(2);
+        }
+        StainMatrixIJ2 stainMatrix = new StainMatrixIJ2();
+        stainMatrix.init(args[2]);
+        int tileSize = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_TILE_SIZE;
+        long leaseMillis = args.length > 4 ? Long.parseLong(args[4]) : DEFAULT_LEASE_MILLIS;
+        int tiles = new ShardedDeconvolution(stainMatrix, Paths.get(args[1]), tileSize, leaseMillis).work(Paths.get(args[0]));
+        System.out.println(tiles);
+    }
+}
@@ -0,0 +1,291 @@
+package sc.fiji.colorDeconvolution;
+
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.B;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.G;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.R;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.convertAbsorptionToIntensity;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.convertIntensityToAbsorption;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.IntStream;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.ColorChannelOrder;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+/**
+ * Color deconvolution with stain vectors that vary across the slide, to correct for staining gradients over large
+ * sections.
+ * <p>
+ * The slide is divided into a coarse grid of cells, each with its own stain matrix, either supplied or estimated from
+ * the cell itself. The inverted matrix of each cell is computed once, up front. During the deconvolution the inverted
+ * matrices are interpolated bilinearly between the centers of the cells, so there are no seams at the cell borders.
+ * Along a row the interpolated matrix changes linearly between two cell centers, so it is updated with 9 additions per
+ * pixel instead of being interpolated from scratch.
+ */
+public class SpatialStainMatrix {
+
+    public static final long DEFAULT_CELL_SIZE = 4096;
+
+    private static final long ROWS_PER_TASK = 64;
+
+    /**
+     * The largest cosine similarity between the two stains estimated in a cell. Closer stains, as estimated from a cell
+     * with only one of the stains, give an almost singular matrix.
+     */
+    static final double MAXIMUM_STAIN_SIMILARITY = 0.95;
+
+    /**
+     * The smallest cosine similarity between a stain estimated in a cell and the same stain of the reference
+     */
+    static final double MINIMUM_REFERENCE_SIMILARITY = 0.9;
+
+    private final long cellWidth;
+    private final long cellHeight;
+    private final int columns;
+    private final int rows;
+    /**
+     * The inverted matrix of each cell, per row of cells
+     */
+    private final double[][][] q;
+    private final double[][] normOD;
+
+    /**
+     * Create a spatially varying stain matrix from a stain matrix per cell.
+     *
+     * @param cellWidth  the width of a cell in pixels
+     * @param cellHeight the height of a cell in pixels
+     * @param cells      the stain matrix of each cell, indexed as [row][column] starting at the top left of the image
+     */
+    public SpatialStainMatrix(long cellWidth, long cellHeight, StainMatrixIJ2[][] cells) {
+        if (cells.length == 0 || cells[0].length == 0) {
+            throw new IllegalArgumentException("At least one cell is required");
+        }
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        this.rows = cells.length;
+        this.columns = cells[0].length;
+        this.q = new double[rows][columns][];
+        for (int row = 0; row < rows; row++) {
+            if (cells[row].length != columns) {
+                throw new IllegalArgumentException("Every row should have " + columns + " cells, but row " + row
+                        + " has " + cells[row].length);
+            }
+            for (int column = 0; column < columns; column++) {
+                q[row][column] = cells[row][column].initComputation(false);
+            }
+        }
+        StainMatrixIJ2 center = cells[rows / 2][columns / 2];
+        center.initComputation(false);
+        // Copy the stain vectors, so initializing the center cell again later cannot change the color tables
+        this.normOD = new double[3][];
+        for (int stain = 0; stain < 3; stain++) {
+            normOD[stain] = center.getNormalizedOpticalDensities()[stain].clone();
+        }
+    }
+
+    /**
+     * Estimate the stain vectors of each cell of the image, see {@link StainVectorEstimator}. The stains of each cell
+     * are put in the same order as those of the reference. Cells with too little tissue to estimate from use the
+     * reference, and so do cells whose estimate is implausible: stains that are almost the same, as estimated from a
+     * region with only one of the stains, or stains that differ too much from those of the reference.
+     *
+     * @param imp       : The ImagePlus to estimate the stains of. RGB only.
+     * @param cellSize  the width and height of a cell in pixels, such as {@link #DEFAULT_CELL_SIZE}
+     * @param estimator the estimator to use in each cell
+     * @param reference the stain matrix for the whole slide, for example estimated from the whole slide
+     * @return the spatially varying stain matrix
+     */
+    public static SpatialStainMatrix estimate(ImgPlus<UnsignedByteType> imp, long cellSize,
+                                              StainVectorEstimator estimator, StainMatrixIJ2 reference) {
+        reference.initComputation(false);
+        double[][] referenceOD = reference.getNormalizedOpticalDensities();
+        RandomAccessibleInterval<ARGBType> mergeARGB = Converters.mergeARGB(imp.getImg(), ColorChannelOrder.RGB);
+        List<Interval> tiles = Tiling.tiles(mergeARGB, cellSize, cellSize);
+        int columns = (int) ((mergeARGB.dimension(0) + cellSize - 1) / cellSize);
+        int rows = tiles.size() / columns;
+
+        StainMatrixIJ2[][] cells = new StainMatrixIJ2[rows][columns];
+        IntStream.range(0, tiles.size()).parallel().forEach(index -> cells[index / columns][index % columns] =
+                estimateCell(estimator, Views.interval(mergeARGB, tiles.get(index)), reference, referenceOD));
+        return new SpatialStainMatrix(cellSize, cellSize, cells);
+    }
+
+    /**
+     * @return the stain matrix estimated from the cell, or the reference when there is no plausible estimate
+     */
+    private static StainMatrixIJ2 estimateCell(StainVectorEstimator estimator, RandomAccessibleInterval<ARGBType> cell,
+                                               StainMatrixIJ2 reference, double[][] referenceOD) {
+        Optional<double[][]> estimated;
+        try {
+            estimated = estimator.estimateIfTissue(cell);
+        } catch (IllegalArgumentException e) {
+            // The tissue of the cell does not span a plane of stains, which should not fail the whole slide
+            return reference;
+        }
+        if (!estimated.isPresent()) {
+            return reference;
+        }
+        double[][] stains = estimated.get();
+        if (similarity(stains[0], referenceOD[StainMatrixIJ2.STAIN2]) + similarity(stains[1], referenceOD[StainMatrixIJ2.STAIN1])
+                > similarity(stains[0], referenceOD[StainMatrixIJ2.STAIN1]) + similarity(stains[1], referenceOD[StainMatrixIJ2.STAIN2])) {
+            stains = new double[][]{stains[1], stains[0]};
+        }
+        if (similarity(stains[0], stains[1]) > MAXIMUM_STAIN_SIMILARITY
+                || similarity(stains[0], referenceOD[StainMatrixIJ2.STAIN1]) < MINIMUM_REFERENCE_SIMILARITY
+                || similarity(stains[1], referenceOD[StainMatrixIJ2.STAIN2]) < MINIMUM_REFERENCE_SIMILARITY) {
+            return reference;
+        }
+        StainMatrixIJ2 stainMatrix = new StainMatrixIJ2();
+        stainMatrix.init("Estimated stain", stains[0][R], stains[0][G], stains[0][B],
+                stains[1][R], stains[1][G], stains[1][B], 0, 0, 0);
+        return stainMatrix;
+    }
+
+    /**
+     * Compute the Deconvolution images with the interpolated stain matrices, in parallel.
+     *
+     * @param imp : The ImagePlus that will be deconvolved. RGB only, with the channels as the third dimension.
+     * @return The three 8-bit images, one per stain
+     */
+    public ImgPlus<UnsignedByteType>[] compute(ImgPlus<UnsignedByteType> imp) {
+        return compute(imp, (stain, dimensions) -> ArrayImgs.unsignedBytes(dimensions));
+    }
+
+    /**
+     * Compute the Deconvolution images with the interpolated stain matrices, in parallel.
+     *
+     * @param imp     : The ImagePlus that will be deconvolved. RGB only, with the channels as the third dimension.
+     * @param factory the factory creating the three 8-bit output images
+     * @return The three 8-bit images, one per stain
+     */
+    public ImgPlus<UnsignedByteType>[] compute(ImgPlus<UnsignedByteType> imp, StainImgFactory factory) {
+        if (imp.numDimensions() != 3) {
+            throw new IllegalArgumentException("Only 2D RGB images are supported, but the image has "
+                    + imp.numDimensions() + " dimensions");
+        }
+        @SuppressWarnings("unchecked")
+        RandomAccessibleInterval<UnsignedByteType>[] channels = new RandomAccessibleInterval[3];
+        for (int channel = R; channel <= B; channel++) {
+            channels[channel] = Views.zeroMin(Views.hyperSlice(imp.getImg(), 2, imp.min(2) + channel));
+        }
+        long[] dimensions = {imp.dimension(0), imp.dimension(1)};
+        @SuppressWarnings("unchecked")
+        Img<UnsignedByteType>[] outputs = new Img[3];
+        for (int stain = 0; stain < 3; stain++) {
+            outputs[stain] = factory.create(stain, dimensions);
+        }
+
+        Tiling.tiles(channels[R], dimensions[0], ROWS_PER_TASK).parallelStream()
+                .forEach(band -> computeBand(band, channels, outputs));
+
+        @SuppressWarnings("unchecked")
+        ImgPlus<UnsignedByteType>[] outputImages = new ImgPlus[3];
+        for (int stain = 0; stain < 3; stain++) {
+            outputImages[stain] = new ImgPlus<>(outputs[stain]);
+        }
+        StainMatrixIJ2.initializeColorTables(outputImages, normOD);
+        return outputImages;
+    }
+
+    private void computeBand(Interval band, RandomAccessibleInterval<UnsignedByteType>[] channels,
+                             Img<UnsignedByteType>[] outputs) {
+        Cursor<UnsignedByteType> red = Views.flatIterable(Views.interval(channels[R], band)).cursor();
+        Cursor<UnsignedByteType> green = Views.flatIterable(Views.interval(channels[G], band)).cursor();
+        Cursor<UnsignedByteType> blue = Views.flatIterable(Views.interval(channels[B], band)).cursor();
+        Cursor<UnsignedByteType> out1 = Views.flatIterable(Views.interval(outputs[0], band)).cursor();
+        Cursor<UnsignedByteType> out2 = Views.flatIterable(Views.interval(outputs[1], band)).cursor();
+        Cursor<UnsignedByteType> out3 = Views.flatIterable(Views.interval(outputs[2], band)).cursor();
+
+        long width = band.dimension(0);
+        double[][] rowMatrices = new double[columns][9];
+        double[] current = new double[9];
+        double[] step = new double[9];
+        for (long y = band.min(1); y <= band.max(1); y++) {
+            interpolateRow(y, rowMatrices);
+            long x = 0;
+            while (x < width) {
+                // Up to the next cell center the matrix changes linearly
+                long end = segment(x, rowMatrices, current, step);
+                for (long segmentEnd = Math.min(end, width); x < segmentEnd; x++) {
+                    double absorbedR = convertIntensityToAbsorption(red.next().get());
+                    double absorbedG = convertIntensityToAbsorption(green.next().get());
+                    double absorbedB = convertIntensityToAbsorption(blue.next().get());
+                    out1.next().set(convertAbsorptionToIntensity(absorbedR * current[0] + absorbedG * current[1] + absorbedB * current[2]));
+                    out2.next().set(convertAbsorptionToIntensity(absorbedR * current[3] + absorbedG * current[4] + absorbedB * current[5]));
+                    out3.next().set(convertAbsorptionToIntensity(absorbedR * current[6] + absorbedG * current[7] + absorbedB * current[8]));
+                    for (int i = 0; i < 9; i++) {
+                        current[i] += step[i];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Interpolate the matrices of the cells vertically, for each column of cells.
+     */
+    private void interpolateRow(long y, double[][] rowMatrices) {
+        double position = (y + 0.5) / cellHeight - 0.5;
+        int above = Math.max(0, Math.min(rows - 1, (int) Math.floor(position)));
+        int below = Math.min(rows - 1, above + 1);
+        double fraction = Math.max(0, Math.min(1, position - above));
+        for (int column = 0; column < columns; column++) {
+            for (int i = 0; i < 9; i++) {
+                rowMatrices[column][i] = (1 - fraction) * q[above][column][i] + fraction * q[below][column][i];
+            }
+        }
+    }
+
+    /**
+     * Find the matrix at x and its change per pixel, up to the next cell center.
+     *
+     * @return the first x beyond the stretch where the matrix changes linearly
+     */
+    private long segment(long x, double[][] rowMatrices, double[] current, double[] step) {
+        double position = (x + 0.5) / cellWidth - 0.5;
+        if (position < 0 || columns == 1) {
+            System.arraycopy(rowMatrices[0], 0, current, 0, 9);
+            Arrays.fill(step, 0);
+            return columns == 1 ? Long.MAX_VALUE : cellWidth / 2;
+        }
+        int left = (int) Math.floor(position);
+        if (left >= columns - 1) {
+            System.arraycopy(rowMatrices[columns - 1], 0, current, 0, 9);
+            Arrays.fill(step, 0);
+            return Long.MAX_VALUE;
+        }
+        double fraction = position - left;
+        for (int i = 0; i < 9; i++) {
+            double difference = rowMatrices[left + 1][i] - rowMatrices[left][i];
+            current[i] = rowMatrices[left][i] + fraction * difference;
+            step[i] = difference / cellWidth;
+        }
+        return left * cellWidth + cellWidth / 2 + cellWidth;
+    }
+
+    /**
+     * @return the inverted matrix at a pixel, interpolated like {@link #compute(ImgPlus)} does
+     */
+    double[] inverseAt(long x, long y) {
+        double[][] rowMatrices = new double[columns][9];
+        interpolateRow(y, rowMatrices);
+        double[] current = new double[9];
+        segment(x, rowMatrices, current, new double[9]);
+        return current;
+    }
+
+    private static double similarity(double[] first, double[] second) {
+        return first[R] * second[R] + first[G] * second[G] + first[B] * second[B];
+    }
+}
@@ -0,0 +1,76 @@
+package sc.fiji.colorDeconvolution;
+
+/**
+ * The histogram of the 8-bit intensities of a deconvolved stain. This holds enough to compare stain matrices, such as
+ * the mean intensity or how many pixels are left in the remainder image, without keeping the deconvolved image itself.
+ */
+public class StainHistogram {
+
+    private final long[] counts;
+
+    StainHistogram(long[] counts) {
+        this.counts = counts;
+    }
+
+    /**
+     * @return a copy of the number of pixels for each intensity between 0 and 255
+     */
+    public long[] getCounts() {
+        return counts.clone();
+    }
+
+    /**
+     * @return the number of pixels in the histogram
+     */
+    public long getPixelCount() {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @return the mean intensity, or NaN when the histogram is empty
+     */
+    public double getMean() {
+        long total = 0;
+        double sum = 0;
+        for (int intensity = 0; intensity < counts.length; intensity++) {
+            total += counts[intensity];
+            sum += (double) intensity * counts[intensity];
+        }
+        return total == 0 ? Double.NaN : sum / total;
+    }
+
+    /**
+     * @return the standard deviation of the intensities, or NaN when the histogram is empty
+     */
+    public double getStandardDeviation() {
+        double mean = getMean();
+        long total = 0;
+        double sum = 0;
+        for (int intensity = 0; intensity < counts.length; intensity++) {
+            total += counts[intensity];
+            sum += (intensity - mean) * (intensity - mean) * counts[intensity];
+        }
+        return total == 0 ? Double.NaN : Math.sqrt(sum / total);
+    }
+
+    /**
+     * @param fraction a value between 0 and 1, for example 0.5 for the median
+     * @return the lowest intensity for which at least the given fraction of pixels has that intensity or lower
+     */
+    public int getPercentile(double fraction) {
+        long total = getPixelCount();
+        long target = (long) Math.ceil(fraction * total);
+        long cumulative = 0;
+        for (int intensity = 0; intensity < counts.length; intensity++) {
+            cumulative += counts[intensity];
+            if (cumulative >= target && cumulative > 0) {
+                return intensity;
+            }
+        }
+        return counts.length - 1;
+    }
+}
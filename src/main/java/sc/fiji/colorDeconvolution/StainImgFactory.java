@@ -0,0 +1,78 @@
+package sc.fiji.colorDeconvolution;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+
+/**
+ * Creates the output images for {@link StainMatrixIJ2#compute(net.imagej.ImgPlus, StainImgFactory)}. This allows the
+ * caller to decide where the deconvolved stains are stored: on the Java heap, in direct buffers or in memory mapped
+ * files.
+ */
+@FunctionalInterface
+public interface StainImgFactory {
+
+    /**
+     * Create the output image for a single stain.
+     *
+     * @param stain      the index of the stain the image is created for, such as {@link StainMatrixIJ2#STAIN1}
+     * @param dimensions the dimensions of the image to create
+     * @return a new 8-bit image with the given dimensions
+     */
+    Img<UnsignedByteType> create(int stain, long[] dimensions);
+
+    /**
+     * @return a factory that stores each stain in a direct {@link java.nio.ByteBuffer}, outside of the Java heap
+     */
+    static StainImgFactory direct() {
+        return (stain, dimensions) -> ArrayImgs.unsignedBytes(
+                new DirectByteAccess(checkedSize(dimensions)), dimensions);
+    }
+
+    /**
+     * Create a factory that stores each stain in a memory mapped file. The files are named prefix1.raw, prefix2.raw,
+     * prefix3.raw and so on, and contain the raw 8-bit pixels in flat iteration order, so x varies fastest. Existing
+     * files are overwritten and the files are left in place after the images are no longer used.
+     *
+     * @param directory the directory to create the files in
+     * @param prefix    the start of the file name of each stain
+     * @return a factory that stores each stain in a memory mapped file
+     */
+    static StainImgFactory memoryMapped(Path directory, String prefix) {
+        return (stain, dimensions) -> {
+            int size = checkedSize(dimensions);
+            Path file = directory.resolve(prefix + (stain + 1) + ".raw");
+            try (FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE, TRUNCATE_EXISTING)) {
+                return ArrayImgs.unsignedBytes(new DirectByteAccess(channel.map(READ_WRITE, 0, size)), dimensions);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not map " + file, e);
+            }
+        };
+    }
+
+    /**
+     * A single buffer can hold at most {@link Integer#MAX_VALUE} bytes, so larger stains cannot be stored in one.
+     *
+     * @param dimensions the dimensions of the image to store
+     * @return the number of bytes needed for the image
+     */
+    static int checkedSize(long[] dimensions) {
+        long size = Intervals.numElements(dimensions);
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Image of " + size + " pixels does not fit in a single buffer");
+        }
+        return (int) size;
+    }
+}
@@ -1,17 +1,29 @@
 package sc.fiji.colorDeconvolution;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
 import ij.IJ;
 import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.ColorChannelOrder;
 import net.imglib2.converter.Converters;
 import net.imglib2.display.ColorTable8;
+import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 
 /**
  * This class performs Color Deconvolution for ImageJ2. It is based on the excellent work done by Gabriel Landini for
@@ -23,6 +35,13 @@ public class StainMatrixIJ2 {
 
     public static final double LOG_255 = Math.log(255.0);
 
+    /**
+     * The absorption values of {@link #convertIntensityToAbsorption(int)} are scaled so an intensity of 0 has an
+     * absorption of 255. Multiply an optical density (log10 of the incident over the transmitted light) by this value to
+     * get the matching absorption.
+     */
+    public static final double ABSORPTION_PER_OPTICAL_DENSITY = 255.0 * Math.log(10.0) / LOG_255;
+
     //This lookup outperforms doing an actual calculation by a lot. Since we only have 256 possible values, this is
     //acceptable
     private static final double[] intensityToAbsorptionLookup = {
@@ -283,6 +302,14 @@ public class StainMatrixIJ2 {
             -0.0,
             -0.1801113263710012};
 
+    //With 65536 possible values the 16-bit lookup is generated when the class is loaded instead of written out
+    private static final double[] intensityToAbsorptionLookup16 = createAbsorptionLookup16();
+
+    /**
+     * The largest value of a 16-bit stain intensity, matching an 8-bit intensity of 255
+     */
+    private static final int MAX_INTENSITY_16 = 65535;
+
     public static final int STAIN1 = 0;
     public static final int STAIN2 = 1;
     public static final int STAIN3 = 2;
@@ -314,6 +341,26 @@ public class StainMatrixIJ2 {
         return intensityToAbsorptionLookup[colorValue];
     }
 
+    /**
+     * This function converts 16-bit pixel intensity values to their absorption counterparts, on the same scale as
+     * {@link #convertIntensityToAbsorption(int)}: a 16-bit value of 257 times an 8-bit value has the same absorption as
+     * that 8-bit value.
+     *
+     * @param colorValue the unsigned short color value of a specific pixel, so between 0 and 65535
+     * @return logarithmically redistributed value
+     */
+    static double convertIntensityToAbsorption16(int colorValue) {
+        return intensityToAbsorptionLookup16[colorValue];
+    }
+
+    private static double[] createAbsorptionLookup16() {
+        double[] lookup = new double[MAX_INTENSITY_16 + 1];
+        for (int i = 0; i < lookup.length; i++) {
+            lookup[i] = -((255.0 * Math.log((i + 257) / (double) MAX_INTENSITY_16)) / LOG_255);
+        }
+        return lookup;
+    }
+
     /**
      * Initialize this stain matrix from a set of specified Stain and Channel values. These values represent vectors
      * of optical densities. The vectors need not be normalized as that is done by the computation.
@@ -375,33 +422,39 @@ public class StainMatrixIJ2 {
      * @return a Stack array of three 8-bit images
      */
     public ImgPlus<UnsignedByteType>[] compute(ImgPlus<UnsignedByteType> imp) {
+        ImgFactory<UnsignedByteType> factory = imp.getImg().factory();
+        return compute(imp, (stain, dimensions) -> factory.create(dimensions));
+    }
+
+    /**
+     * Compute the Deconvolution images like {@link #compute(ImgPlus)}, but let the given factory create the output
+     * images. Use {@link StainImgFactory#direct()} or {@link StainImgFactory#memoryMapped(java.nio.file.Path, String)}
+     * to keep the output off the Java heap, so it can be handed to native code without copying.
+     *
+     * @param imp     : The ImagePlus that will be deconvolved. RGB only.
+     * @param factory the factory creating the three 8-bit output images
+     * @return a Stack array of three 8-bit images
+     */
+    public ImgPlus<UnsignedByteType>[] compute(ImgPlus<UnsignedByteType> imp, StainImgFactory factory) {
         double[] q = initComputation(true);
 
         Img<UnsignedByteType> img = imp.getImg();
 
         RandomAccessibleInterval<ARGBType> mergeARGB = Converters.mergeARGB(img, ColorChannelOrder.RGB);
+        long[] dimensions = Intervals.dimensionsAsLongArray(mergeARGB);
 
-        Img<UnsignedByteType> outputImg1 = img.factory().create(mergeARGB);
-        Img<UnsignedByteType> outputImg2 = img.factory().create(mergeARGB);
-        Img<UnsignedByteType> outputImg3 = img.factory().create(mergeARGB);
+        Img<UnsignedByteType> outputImg1 = factory.create(STAIN1, dimensions);
+        Img<UnsignedByteType> outputImg2 = factory.create(STAIN2, dimensions);
+        Img<UnsignedByteType> outputImg3 = factory.create(STAIN3, dimensions);
 
+        double[] stains = new double[3];
         LoopBuilder.setImages(mergeARGB, outputImg1, outputImg2, outputImg3).forEachPixel(
                 (input, out1, out2, out3) -> {
-                    int rgba = input.get();
-
-                    double absorbedR = convertIntensityToAbsorption(ARGBType.red(rgba));
-                    double absorbedG = convertIntensityToAbsorption(ARGBType.green(rgba));
-                    double absorbedB = convertIntensityToAbsorption(ARGBType.blue(rgba));
-
-                    // Rescale to match original paper values
-                    double intensityColor1 = Math.exp(-((absorbedR * q[0] + absorbedG * q[1] + absorbedB * q[2]) - 255.0) * LOG_255 / 255.0);
-                    out1.set(intensityColor1 > 255 ? 255 : (int) Math.round(intensityColor1));
-
-                    double intensityColor2 = Math.exp(-((absorbedR * q[3] + absorbedG * q[4] + absorbedB * q[5]) - 255.0) * LOG_255 / 255.0);
-                    out2.set(intensityColor2 > 255 ? 255 : (int) Math.round(intensityColor2));
+                    deconvolvePixel(input.get(), q, stains);
 
-                    double intensityColor3 = Math.exp(-((absorbedR * q[6] + absorbedG * q[7] + absorbedB * q[8]) - 255.0) * LOG_255 / 255.0);
-                    out3.set(intensityColor3 > 255 ? 255 : (int) Math.round(intensityColor3));
+                    out1.set(convertAbsorptionToIntensity(stains[STAIN1]));
+                    out2.set(convertAbsorptionToIntensity(stains[STAIN2]));
+                    out3.set(convertAbsorptionToIntensity(stains[STAIN3]));
                 }
         );
 
@@ -410,11 +463,336 @@ public class StainMatrixIJ2 {
         outputImages[0] = new ImgPlus<>(outputImg1);
         outputImages[1] = new ImgPlus<>(outputImg2);
         outputImages[2] = new ImgPlus<>(outputImg3);
-        initializeColorTables(outputImages);
+        initializeColorTables(outputImages, normOD);
         return outputImages;
     }
 
-    private double[] initComputation(boolean showLog) {
+    /**
+     * Compute the Deconvolution images like {@link #compute(ImgPlus)}, without blocking the calling thread.
+     *
+     * @param imp      : The ImagePlus that will be deconvolved. RGB only.
+     * @param executor the executor to compute on, for example a thread pool or an executor of virtual threads
+     * @return a future of the three 8-bit images
+     * @see TileDeconvolution to process the image tile by tile, so writing the output can overlap with computing it
+     */
+    public CompletableFuture<ImgPlus<UnsignedByteType>[]> computeAsync(ImgPlus<UnsignedByteType> imp, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> compute(imp), executor);
+    }
+
+    /**
+     * Compute the Deconvolution images of a 48-bit RGB image, with 16 bits per channel, and return three 8-bit images
+     * like {@link #compute(ImgPlus)}. The absorptions are looked up at the full 16-bit precision.
+     *
+     * @param imp : The ImagePlus that will be deconvolved. RGB only, with the channels in the last dimension.
+     * @return a Stack array of three 8-bit images
+     */
+    public ImgPlus<UnsignedByteType>[] computeFrom16Bit(ImgPlus<UnsignedShortType> imp) {
+        ImgPlus<UnsignedByteType>[] outputImages = compute16(imp, ArrayImgs::unsignedBytes,
+                (output, absorption) -> output.set(convertAbsorptionToIntensity(absorption)));
+        initializeColorTables(outputImages, normOD);
+        return outputImages;
+    }
+
+    /**
+     * Compute the Deconvolution images of a 48-bit RGB image and return three 16-bit images. These hold 257 times the
+     * intensities of {@link #computeFrom16Bit(ImgPlus)}, without rounding them to 8 bits.
+     *
+     * @param imp : The ImagePlus that will be deconvolved. RGB only, with the channels in the last dimension.
+     * @return a Stack array of three 16-bit images
+     */
+    public ImgPlus<UnsignedShortType>[] computeFrom16BitTo16Bit(ImgPlus<UnsignedShortType> imp) {
+        ImgPlus<UnsignedShortType>[] outputImages = compute16(imp, ArrayImgs::unsignedShorts,
+                (output, absorption) -> output.set(convertAbsorptionToIntensity16(absorption)));
+        initializeColorTables(outputImages, normOD);
+        return outputImages;
+    }
+
+    /**
+     * Compute the amount of each stain in a 48-bit RGB image as an optical density, the log10 of the incident over
+     * the transmitted light. Unlike the intensities, optical densities add up, so they suit quantification.
+     *
+     * @param imp : The ImagePlus that will be deconvolved. RGB only, with the channels in the last dimension.
+     * @return a Stack array of three float images
+     */
+    public ImgPlus<FloatType>[] computeOpticalDensitiesFrom16Bit(ImgPlus<UnsignedShortType> imp) {
+        return compute16(imp, ArrayImgs::floats,
+                (output, absorption) -> output.set((float) (absorption / ABSORPTION_PER_OPTICAL_DENSITY)));
+    }
+
+    private <T extends RealType<T>> ImgPlus<T>[] compute16(ImgPlus<UnsignedShortType> imp,
+                                                           Function<long[], Img<T>> factory,
+                                                           AbsorptionWriter<T> writer) {
+        double[] q = initComputation(true);
+
+        int channelAxis = imp.numDimensions() - 1;
+        if (imp.dimension(channelAxis) != 3) {
+            throw new IllegalArgumentException("Expected 3 channels but the image has " + imp.dimension(channelAxis));
+        }
+        @SuppressWarnings("unchecked")
+        RandomAccessibleInterval<UnsignedShortType>[] channels = new RandomAccessibleInterval[3];
+        for (int channel = R; channel <= B; channel++) {
+            channels[channel] = Views.zeroMin(Views.hyperSlice(imp.getImg(), channelAxis, imp.min(channelAxis) + channel));
+        }
+        long[] dimensions = Intervals.dimensionsAsLongArray(channels[R]);
+
+        Img<T> outputImg1 = factory.apply(dimensions);
+        Img<T> outputImg2 = factory.apply(dimensions);
+        Img<T> outputImg3 = factory.apply(dimensions);
+
+        Tiling.chunks(dimensions, true).parallelStream().forEach(interval -> {
+            Cursor<UnsignedShortType> red = Views.flatIterable(Views.interval(channels[R], interval)).cursor();
+            Cursor<UnsignedShortType> green = Views.flatIterable(Views.interval(channels[G], interval)).cursor();
+            Cursor<UnsignedShortType> blue = Views.flatIterable(Views.interval(channels[B], interval)).cursor();
+            Cursor<T> out1 = Views.flatIterable(Views.interval(outputImg1, interval)).cursor();
+            Cursor<T> out2 = Views.flatIterable(Views.interval(outputImg2, interval)).cursor();
+            Cursor<T> out3 = Views.flatIterable(Views.interval(outputImg3, interval)).cursor();
+            while (red.hasNext()) {
+                double absorbedR = convertIntensityToAbsorption16(red.next().get());
+                double absorbedG = convertIntensityToAbsorption16(green.next().get());
+                double absorbedB = convertIntensityToAbsorption16(blue.next().get());
+
+                writer.write(out1.next(), absorbedR * q[0] + absorbedG * q[1] + absorbedB * q[2]);
+                writer.write(out2.next(), absorbedR * q[3] + absorbedG * q[4] + absorbedB * q[5]);
+                writer.write(out3.next(), absorbedR * q[6] + absorbedG * q[7] + absorbedB * q[8]);
+            }
+        });
+
+        @SuppressWarnings("unchecked")
+        ImgPlus<T>[] outputImages = new ImgPlus[3];
+        outputImages[0] = new ImgPlus<>(outputImg1);
+        outputImages[1] = new ImgPlus<>(outputImg2);
+        outputImages[2] = new ImgPlus<>(outputImg3);
+        return outputImages;
+    }
+
+    /**
+     * Stores the absorption of a stain in an output pixel, converting it to the type of the output
+     */
+    @FunctionalInterface
+    private interface AbsorptionWriter<T> {
+        void write(T output, double absorption);
+    }
+
+    /**
+     * Compute the Deconvolution images like {@link #compute(ImgPlus, StainImgFactory)}, and in the same pass rebuild RGB
+     * images that only show some of the stains, such as a "hematoxylin-only" or a "DAB-only" rendering. Each RGB image
+     * is rebuilt from the absorptions of the chosen stains, so showing all three stains gives back the original image.
+     * The RGB images are created by the {@link ImgFactory} of the first stain image, with the {@link ARGBType} type. As a
+     * {@link StainImgFactory} only creates 8-bit images, the RGB images of {@link StainImgFactory#direct()} and
+     * {@link StainImgFactory#memoryMapped(java.nio.file.Path, String)} are array images on the Java heap, not in direct
+     * buffers or files.
+     *
+     * @param imp          : The ImagePlus that will be deconvolved. RGB only.
+     * @param factory      the factory creating the three 8-bit output images
+     * @param stainSubsets for each RGB image to rebuild, the stains to show, such as {STAIN1} or {STAIN1, STAIN3}
+     * @return the three 8-bit images and an RGB image per subset of stains
+     */
+    public DeconvolutionResult computeWithReconstructions(ImgPlus<UnsignedByteType> imp, StainImgFactory factory,
+                                                          int[]... stainSubsets) {
+        double[] q = initComputation(true);
+
+        RandomAccessibleInterval<ARGBType> mergeARGB = Converters.mergeARGB(imp.getImg(), ColorChannelOrder.RGB);
+        long[] dimensions = Intervals.dimensionsAsLongArray(mergeARGB);
+
+        @SuppressWarnings("unchecked")
+        Img<UnsignedByteType>[] stainImgs = new Img[3];
+        @SuppressWarnings("unchecked")
+        Cursor<UnsignedByteType>[] stainCursors = new Cursor[3];
+        for (int stain = 0; stain < 3; stain++) {
+            stainImgs[stain] = factory.create(stain, dimensions);
+            stainCursors[stain] = Views.flatIterable(stainImgs[stain]).cursor();
+        }
+
+        ImgFactory<ARGBType> rgbFactory = argbFactory(stainImgs[STAIN1].factory());
+        double[][] reconstructions = new double[stainSubsets.length][];
+        @SuppressWarnings("unchecked")
+        Img<ARGBType>[] rgbImgs = new Img[stainSubsets.length];
+        @SuppressWarnings("unchecked")
+        Cursor<ARGBType>[] rgbCursors = new Cursor[stainSubsets.length];
+        for (int subset = 0; subset < stainSubsets.length; subset++) {
+            // Leave out the stains that are not chosen by giving them a weight of 0
+            double[] weights = new double[3];
+            for (int stain : stainSubsets[subset]) {
+                if (stain < STAIN1 || stain > STAIN3) {
+                    throw new IllegalArgumentException("There is no stain " + stain);
+                }
+                weights[stain] = 1.0;
+            }
+            reconstructions[subset] = reconstructionMatrix(normOD, weights);
+            rgbImgs[subset] = rgbFactory.create(dimensions);
+            rgbCursors[subset] = Views.flatIterable(rgbImgs[subset]).cursor();
+        }
+
+        double[] stains = new double[3];
+        Cursor<ARGBType> input = Views.flatIterable(mergeARGB).cursor();
+        while (input.hasNext()) {
+            deconvolvePixel(input.next().get(), q, stains);
+            stainCursors[STAIN1].next().set(convertAbsorptionToIntensity(stains[STAIN1]));
+            stainCursors[STAIN2].next().set(convertAbsorptionToIntensity(stains[STAIN2]));
+            stainCursors[STAIN3].next().set(convertAbsorptionToIntensity(stains[STAIN3]));
+
+            for (int subset = 0; subset < reconstructions.length; subset++) {
+                rgbCursors[subset].next().set(reconstructPixel(stains, reconstructions[subset]));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        ImgPlus<UnsignedByteType>[] stainImages = new ImgPlus[3];
+        for (int stain = 0; stain < 3; stain++) {
+            stainImages[stain] = new ImgPlus<>(stainImgs[stain]);
+        }
+        initializeColorTables(stainImages, normOD);
+        @SuppressWarnings("unchecked")
+        ImgPlus<ARGBType>[] rgbImages = new ImgPlus[stainSubsets.length];
+        for (int subset = 0; subset < stainSubsets.length; subset++) {
+            rgbImages[subset] = new ImgPlus<>(rgbImgs[subset]);
+        }
+        return new DeconvolutionResult(stainImages, rgbImages);
+    }
+
+    /**
+     * @return the normalized optical density vector of each stain, as determined by the last call to
+     * {@link #initComputation(boolean)}
+     */
+    double[][] getNormalizedOpticalDensities() {
+        return normOD;
+    }
+
+    /**
+     * Convert this stain matrix into a {@link StainProjection}, which deconvolves the same three stains using the same
+     * inverted matrix, but can do so using multiple threads.
+     *
+     * @return a projection of RGB absorptions onto the three stains of this matrix
+     */
+    public StainProjection toProjection() {
+        double[] q = initComputation(true);
+        double[][] stainVectors = new double[3][];
+        for (int stain = 0; stain < 3; stain++) {
+            stainVectors[stain] = normOD[stain].clone();
+        }
+        return new StainProjection(3, 3, q, stainVectors);
+    }
+
+    /**
+     * Deconvolve a block of interleaved 8-bit RGB pixels, such as a strip read from a TIFF file. This is the same
+     * computation as {@link #compute(ImgPlus)} does per pixel, but on plain arrays.
+     *
+     * @param q               the inverted matrix, as returned by {@link #initComputation(boolean)}
+     * @param rgb             the interleaved pixels, starting with the red sample of the first pixel
+     * @param samplesPerPixel the number of samples per pixel, 3 for RGB or 4 when there is an alpha sample to skip
+     * @param pixelCount      the number of pixels to deconvolve
+     * @param out1            receives the 8-bit intensities for stain 1
+     * @param out2            receives the 8-bit intensities for stain 2
+     * @param out3            receives the 8-bit intensities for stain 3
+     */
+    static void deconvolveInterleaved(double[] q, byte[] rgb, int samplesPerPixel, int pixelCount,
+                                      byte[] out1, byte[] out2, byte[] out3) {
+        for (int pixel = 0, sample = 0; pixel < pixelCount; pixel++, sample += samplesPerPixel) {
+            double absorbedR = convertIntensityToAbsorption(rgb[sample] & 0xff);
+            double absorbedG = convertIntensityToAbsorption(rgb[sample + 1] & 0xff);
+            double absorbedB = convertIntensityToAbsorption(rgb[sample + 2] & 0xff);
+
+            out1[pixel] = (byte) convertAbsorptionToIntensity(absorbedR * q[0] + absorbedG * q[1] + absorbedB * q[2]);
+            out2[pixel] = (byte) convertAbsorptionToIntensity(absorbedR * q[3] + absorbedG * q[4] + absorbedB * q[5]);
+            out3[pixel] = (byte) convertAbsorptionToIntensity(absorbedR * q[6] + absorbedG * q[7] + absorbedB * q[8]);
+        }
+    }
+
+    /**
+     * Deconvolve a single RGB pixel into the absorption of each of the three stains. This is the computation every
+     * pixel of {@link #compute(ImgPlus)} goes through.
+     *
+     * @param rgba   the pixel
+     * @param q      the inverted matrix, as returned by {@link #initComputation(boolean)}
+     * @param stains receives the absorption of stain 1, 2 and 3
+     */
+    static void deconvolvePixel(int rgba, double[] q, double[] stains) {
+        double absorbedR = convertIntensityToAbsorption(ARGBType.red(rgba));
+        double absorbedG = convertIntensityToAbsorption(ARGBType.green(rgba));
+        double absorbedB = convertIntensityToAbsorption(ARGBType.blue(rgba));
+
+        stains[STAIN1] = absorbedR * q[0] + absorbedG * q[1] + absorbedB * q[2];
+        stains[STAIN2] = absorbedR * q[3] + absorbedG * q[4] + absorbedB * q[5];
+        stains[STAIN3] = absorbedR * q[6] + absorbedG * q[7] + absorbedB * q[8];
+    }
+
+    /**
+     * Build the matrix that turns the absorptions of the three stains back into absorbed red, green and blue values.
+     *
+     * @param normOD  the normalized optical density vector of each stain
+     * @param weights the factor to apply to each stain, 0 to leave it out or 1 to keep it as it is
+     * @return the channels x stains matrix in row major order
+     */
+    static double[] reconstructionMatrix(double[][] normOD, double[] weights) {
+        double[] reconstruction = new double[9];
+        for (int channel = 0; channel < 3; channel++) {
+            for (int stain = 0; stain < 3; stain++) {
+                reconstruction[channel * 3 + stain] = weights[stain] * normOD[stain][channel];
+            }
+        }
+        return reconstruction;
+    }
+
+    /**
+     * Rebuild an RGB pixel from the absorptions of the three stains.
+     *
+     * @param stains         the absorption of stain 1, 2 and 3, as computed by
+     *                       {@link #deconvolvePixel(int, double[], double[])}
+     * @param reconstruction the matrix built by {@link #reconstructionMatrix(double[][], double[])}
+     * @return the rebuilt pixel
+     */
+    static int reconstructPixel(double[] stains, double[] reconstruction) {
+        int r = convertAbsorptionToColorValue(stains[STAIN1] * reconstruction[0] + stains[STAIN2] * reconstruction[1] + stains[STAIN3] * reconstruction[2]);
+        int g = convertAbsorptionToColorValue(stains[STAIN1] * reconstruction[3] + stains[STAIN2] * reconstruction[4] + stains[STAIN3] * reconstruction[5]);
+        int b = convertAbsorptionToColorValue(stains[STAIN1] * reconstruction[6] + stains[STAIN2] * reconstruction[7] + stains[STAIN3] * reconstruction[8]);
+        return ARGBType.rgba(r, g, b, 255);
+    }
+
+    /**
+     * Convert the absorption of a single stain back to an 8-bit intensity, rescaled to match the original paper values.
+     *
+     * @param absorption the absorption of a stain, the dot product of the absorbed colors and a row of the inverted
+     *                   matrix
+     * @return the intensity between 0 and 255
+     */
+    static int convertAbsorptionToIntensity(double absorption) {
+        double intensity = Math.exp(-(absorption - 255.0) * LOG_255 / 255.0);
+        return intensity > 255 ? 255 : (int) Math.round(intensity);
+    }
+
+    /**
+     * Convert the absorption of a stain into a 16-bit intensity, 257 times the intensity of
+     * {@link #convertAbsorptionToIntensity(double)} before rounding.
+     *
+     * @param absorption the absorption of a stain
+     * @return the intensity between 0 and 65535
+     */
+    static int convertAbsorptionToIntensity16(double absorption) {
+        double intensity = MAX_INTENSITY_16 * Math.exp(-absorption * LOG_255 / 255.0);
+        return intensity > MAX_INTENSITY_16 ? MAX_INTENSITY_16 : (int) Math.round(intensity);
+    }
+
+    /**
+     * Convert an absorption back to an 8-bit color value. This is the exact inverse of
+     * {@link #convertIntensityToAbsorption(int)}, so it is used to rebuild RGB images from stain absorptions.
+     *
+     * @param absorption the absorption of a color channel
+     * @return the color value between 0 and 255
+     */
+    static int convertAbsorptionToColorValue(double absorption) {
+        long colorValue = Math.round(255.0 * Math.exp(-absorption * LOG_255 / 255.0) - 1.0);
+        return colorValue < 0 ? 0 : colorValue > 255 ? 255 : (int) colorValue;
+    }
+
+    /**
+     * Normalize the stain vectors and build the inverted matrix used to deconvolve pixels. Row i of the 3x3 matrix,
+     * stored in q[3 * i] to q[3 * i + 2], converts the absorbed red, green and blue values into the absorption of stain
+     * i.
+     *
+     * @param showLog boolean value that determines whether logging should be done
+     * @return the inverted matrix in row major order
+     */
+    double[] initComputation(boolean showLog) {
 
         normalizeVectorLengths();
 
@@ -524,9 +902,24 @@ public class StainMatrixIJ2 {
         return q;
     }
 
-    private void initializeColorTables(ImgPlus<UnsignedByteType>[] outputImages) {
+    /**
+     * Get a factory for RGB images that stores them the same way as the images of the given factory, for example in
+     * cells for images that are too large for a single array.
+     *
+     * @param factory the factory of an input or output image
+     * @return a factory creating RGB images
+     */
+    static ImgFactory<ARGBType> argbFactory(ImgFactory<?> factory) {
+        try {
+            return factory.imgFactory(new ARGBType());
+        } catch (IncompatibleTypeException e) {
+            throw new IllegalArgumentException("Cannot create RGB images with " + factory, e);
+        }
+    }
+
+    static void initializeColorTables(ImgPlus<?>[] outputImages, double[][] normOD) {
 
-        for (int imageNumber = 0; imageNumber < 3; imageNumber++) {
+        for (int imageNumber = 0; imageNumber < outputImages.length; imageNumber++) {
             byte[] rLUT = new byte[256];
             byte[] gLUT = new byte[256];
             byte[] bLUT = new byte[256];
@@ -0,0 +1,135 @@
+package sc.fiji.colorDeconvolution;
+
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.convertAbsorptionToIntensity;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.convertIntensityToAbsorption;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.ColorChannelOrder;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+/**
+ * Deconvolves an image with many stain matrices in a single pass over the image. This is meant for calibrating stain
+ * vectors, where the same slide is deconvolved with many slightly different matrices.
+ * <p>
+ * The conversion of each pixel to absorptions is shared by all matrices, so every additional matrix only adds three dot
+ * products per pixel instead of another pass over the image.
+ */
+public class StainMatrixSweep {
+
+    private final List<StainMatrixIJ2> stainMatrices;
+
+    /**
+     * @param stainMatrices the initialized stain matrices to deconvolve with
+     */
+    public StainMatrixSweep(List<StainMatrixIJ2> stainMatrices) {
+        this.stainMatrices = new ArrayList<>(stainMatrices);
+    }
+
+    /**
+     * Deconvolve the image with every stain matrix.
+     *
+     * @param imp : The ImagePlus that will be deconvolved. RGB only.
+     * @return for each stain matrix, in order, three 8-bit images as returned by {@link StainMatrixIJ2#compute(ImgPlus)}
+     */
+    public List<ImgPlus<UnsignedByteType>[]> compute(ImgPlus<UnsignedByteType> imp) {
+        RandomAccessibleInterval<ARGBType> mergeARGB = Converters.mergeARGB(imp.getImg(), ColorChannelOrder.RGB);
+        ImgFactory<UnsignedByteType> factory = imp.getImg().factory();
+        int matrices = stainMatrices.size();
+
+        @SuppressWarnings("unchecked")
+        Img<UnsignedByteType>[] outputs = new Img[matrices * 3];
+        @SuppressWarnings("unchecked")
+        Cursor<UnsignedByteType>[] outputCursors = new Cursor[matrices * 3];
+        for (int output = 0; output < outputs.length; output++) {
+            outputs[output] = factory.create(mergeARGB);
+            outputCursors[output] = Views.flatIterable(outputs[output]).cursor();
+        }
+
+        double[] q = initComputations();
+        double[] absorptions = new double[matrices * 3];
+        Cursor<ARGBType> input = Views.flatIterable(mergeARGB).cursor();
+        while (input.hasNext()) {
+            deconvolve(input.next().get(), q, absorptions);
+            for (int output = 0; output < outputs.length; output++) {
+                outputCursors[output].next().set(convertAbsorptionToIntensity(absorptions[output]));
+            }
+        }
+
+        List<ImgPlus<UnsignedByteType>[]> results = new ArrayList<>(matrices);
+        for (int matrix = 0; matrix < matrices; matrix++) {
+            @SuppressWarnings("unchecked")
+            ImgPlus<UnsignedByteType>[] outputImages = new ImgPlus[3];
+            for (int stain = 0; stain < 3; stain++) {
+                outputImages[stain] = new ImgPlus<>(outputs[matrix * 3 + stain]);
+            }
+            StainMatrixIJ2.initializeColorTables(outputImages, stainMatrices.get(matrix).getNormalizedOpticalDensities());
+            results.add(outputImages);
+        }
+        return results;
+    }
+
+    /**
+     * Deconvolve the image with every stain matrix, but only keep the histogram of each stain instead of the images.
+     * This needs no memory for output images, so a sweep over many matrices works on any image that fits in memory.
+     *
+     * @param imp : The ImagePlus that will be deconvolved. RGB only.
+     * @return for each stain matrix, in order, the histograms of its three stains
+     */
+    public List<StainHistogram[]> computeHistograms(ImgPlus<UnsignedByteType> imp) {
+        RandomAccessibleInterval<ARGBType> mergeARGB = Converters.mergeARGB(imp.getImg(), ColorChannelOrder.RGB);
+        int matrices = stainMatrices.size();
+
+        double[] q = initComputations();
+        double[] absorptions = new double[matrices * 3];
+        long[][] counts = new long[matrices * 3][256];
+        for (ARGBType pixel : Views.flatIterable(mergeARGB)) {
+            deconvolve(pixel.get(), q, absorptions);
+            for (int output = 0; output < counts.length; output++) {
+                counts[output][convertAbsorptionToIntensity(absorptions[output])]++;
+            }
+        }
+
+        List<StainHistogram[]> results = new ArrayList<>(matrices);
+        for (int matrix = 0; matrix < matrices; matrix++) {
+            StainHistogram[] histograms = new StainHistogram[3];
+            for (int stain = 0; stain < 3; stain++) {
+                histograms[stain] = new StainHistogram(counts[matrix * 3 + stain]);
+            }
+            results.add(histograms);
+        }
+        return results;
+    }
+
+    /**
+     * @return the inverted matrices of all stain matrices, one after the other
+     */
+    private double[] initComputations() {
+        double[] q = new double[stainMatrices.size() * 9];
+        for (int matrix = 0; matrix < stainMatrices.size(); matrix++) {
+            System.arraycopy(stainMatrices.get(matrix).initComputation(true), 0, q, matrix * 9, 9);
+        }
+        return q;
+    }
+
+    /**
+     * Compute the absorption of every stain of every matrix for a single pixel.
+     */
+    private static void deconvolve(int rgba, double[] q, double[] absorptions) {
+        double absorbedR = convertIntensityToAbsorption(ARGBType.red(rgba));
+        double absorbedG = convertIntensityToAbsorption(ARGBType.green(rgba));
+        double absorbedB = convertIntensityToAbsorption(ARGBType.blue(rgba));
+        for (int row = 0, i = 0; i < absorptions.length; row += 3, i++) {
+            absorptions[i] = absorbedR * q[row] + absorbedG * q[row + 1] + absorbedB * q[row + 2];
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package sc.fiji.colorDeconvolution;
+
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.B;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.G;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.R;
+
+import java.util.Arrays;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.ColorChannelOrder;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Normalizes the stain appearance of slides to that of a reference, for example before feeding them to a classifier.
+ * <p>
+ * Each source pixel is deconvolved with the stain matrix of the source slide, the amount of each stain is rescaled so
+ * its high percentile matches that of the reference, and the pixel is rebuilt from the stain vectors of the reference.
+ * This is done in a single pass over the image, tile by tile in parallel, straight from the source RGB to the
+ * normalized RGB without any intermediate stain images. The percentiles of the source slide are gathered from a random
+ * sample of its pixels, see {@link OpticalDensitySampler}.
+ */
+public class StainNormalizer {
+
+    /**
+     * The percentile of the stain absorptions that is matched between source and reference
+     */
+    public static final double DEFAULT_PERCENTILE = 0.99;
+
+    /**
+     * Stains with a percentile absorption below this value are barely present, so they are not rescaled
+     */
+    private static final double MINIMUM_ABSORPTION = 1.0;
+
+    private static final long TILE_SIZE = 512;
+
+    private final double[][] targetNormOD;
+    private final double[] targetMaxAbsorptions;
+    private final double percentile;
+
+    /**
+     * Create a normalizer for a reference appearance given by its stain vectors and the high percentile of the
+     * absorption of each stain.
+     *
+     * @param target               the stain matrix of the reference appearance
+     * @param targetMaxAbsorptions the absorption of each of the three stains at the percentile in the reference
+     * @param percentile           the percentile to match, such as {@link #DEFAULT_PERCENTILE}
+     */
+    public StainNormalizer(StainMatrixIJ2 target, double[] targetMaxAbsorptions, double percentile) {
+        target.initComputation(false);
+        this.targetNormOD = copy(target.getNormalizedOpticalDensities());
+        this.targetMaxAbsorptions = targetMaxAbsorptions.clone();
+        this.percentile = percentile;
+    }
+
+    /**
+     * Create a normalizer that makes slides look like a reference image.
+     *
+     * @param reference : The reference ImagePlus with the desired appearance. RGB only.
+     * @param target    the stain matrix of the reference image
+     * @return a normalizer to the appearance of the reference image
+     */
+    public static StainNormalizer fromReference(ImgPlus<UnsignedByteType> reference, StainMatrixIJ2 target) {
+        RandomAccessibleInterval<ARGBType> mergeARGB = Converters.mergeARGB(reference.getImg(), ColorChannelOrder.RGB);
+        double[] maxAbsorptions = percentiles(mergeARGB, target.initComputation(false), DEFAULT_PERCENTILE);
+        return new StainNormalizer(target, maxAbsorptions, DEFAULT_PERCENTILE);
+    }
+
+    /**
+     * Normalize a slide to the reference appearance. The output is stored the same way as the input, so a slide in
+     * cells gives a normalized slide in cells.
+     *
+     * @param imp    : The ImagePlus that will be normalized. RGB only.
+     * @param source the stain matrix of the slide, for example estimated with {@link StainVectorEstimator}
+     * @return the normalized RGB image
+     */
+    public ImgPlus<ARGBType> normalize(ImgPlus<UnsignedByteType> imp, StainMatrixIJ2 source) {
+        return normalize(imp, source, StainMatrixIJ2.argbFactory(imp.getImg().factory()));
+    }
+
+    /**
+     * Normalize a slide to the reference appearance like {@link #normalize(ImgPlus, StainMatrixIJ2)}, but let the given
+     * factory create the output image.
+     *
+     * @param imp     : The ImagePlus that will be normalized. RGB only.
+     * @param source  the stain matrix of the slide, for example estimated with {@link StainVectorEstimator}
+     * @param factory the factory creating the normalized RGB image
+     * @return the normalized RGB image
+     */
+    public ImgPlus<ARGBType> normalize(ImgPlus<UnsignedByteType> imp, StainMatrixIJ2 source, ImgFactory<ARGBType> factory) {
+        double[] q = source.initComputation(true);
+        RandomAccessibleInterval<ARGBType> mergeARGB = Converters.mergeARGB(imp.getImg(), ColorChannelOrder.RGB);
+
+        double[] sourceMaxAbsorptions = percentiles(mergeARGB, q, percentile);
+        double[] scale = new double[3];
+        for (int stain = 0; stain < 3; stain++) {
+            boolean present = sourceMaxAbsorptions[stain] > MINIMUM_ABSORPTION && targetMaxAbsorptions[stain] > MINIMUM_ABSORPTION;
+            scale[stain] = present ? targetMaxAbsorptions[stain] / sourceMaxAbsorptions[stain] : 1.0;
+        }
+
+        // Fold the rescaling and the reference stain vectors into one matrix, so each pixel takes 2 matrix products
+        double[] reconstruction = StainMatrixIJ2.reconstructionMatrix(targetNormOD, scale);
+
+        Img<ARGBType> output = factory.create(Intervals.dimensionsAsLongArray(mergeARGB));
+        RandomAccessibleInterval<ARGBType> zeroMinInput = Views.zeroMin(mergeARGB);
+        Tiling.tiles(output, TILE_SIZE, TILE_SIZE).parallelStream().forEach(tile -> {
+            Cursor<ARGBType> in = Views.flatIterable(Views.interval(zeroMinInput, tile)).cursor();
+            Cursor<ARGBType> out = Views.flatIterable(Views.interval(output, tile)).cursor();
+            double[] stains = new double[3];
+            while (in.hasNext()) {
+                out.next().set(normalizePixel(in.next().get(), q, reconstruction, stains));
+            }
+        });
+        return new ImgPlus<>(output);
+    }
+
+    /**
+     * Map a source pixel straight to its normalized color.
+     *
+     * @param rgba           the source pixel
+     * @param q              the inverted stain matrix of the source
+     * @param reconstruction the matrix converting source stain absorptions into reference channel absorptions
+     * @param stains         receives the absorption of each stain in the source pixel, so no array is allocated per pixel
+     * @return the normalized pixel
+     */
+    static int normalizePixel(int rgba, double[] q, double[] reconstruction, double[] stains) {
+        StainMatrixIJ2.deconvolvePixel(rgba, q, stains);
+        return StainMatrixIJ2.reconstructPixel(stains, reconstruction);
+    }
+
+    /**
+     * Estimate the high percentile of the absorption of each stain from a random sample of tissue pixels.
+     */
+    private static double[] percentiles(RandomAccessibleInterval<ARGBType> image, double[] q, double percentile) {
+        OpticalDensitySampler sampler = new OpticalDensitySampler(StainVectorEstimator.DEFAULT_TILE_SIZE,
+                StainVectorEstimator.DEFAULT_SAMPLES_PER_TILE, StainVectorEstimator.DEFAULT_MAXIMUM_SAMPLES, 0);
+        double[] samples = sampler.sample(image);
+        int count = samples.length / 3;
+        double[] percentiles = new double[3];
+        if (count == 0) {
+            return percentiles;
+        }
+        double[] absorptions = new double[count];
+        for (int stain = 0; stain < 3; stain++) {
+            for (int pixel = 0; pixel < count; pixel++) {
+                absorptions[pixel] = samples[pixel * 3 + R] * q[stain * 3]
+                        + samples[pixel * 3 + G] * q[stain * 3 + 1]
+                        + samples[pixel * 3 + B] * q[stain * 3 + 2];
+            }
+            Arrays.sort(absorptions);
+            percentiles[stain] = absorptions[(int) Math.round(percentile * (count - 1))];
+        }
+        return percentiles;
+    }
+
+    private static double[][] copy(double[][] matrix) {
+        double[][] copy = new double[matrix.length][];
+        for (int row = 0; row < matrix.length; row++) {
+            copy[row] = matrix[row].clone();
+        }
+        return copy;
+    }
+}
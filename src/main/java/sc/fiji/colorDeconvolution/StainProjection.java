@@ -0,0 +1,282 @@
+package sc.fiji.colorDeconvolution;
+
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.convertAbsorptionToIntensity;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.convertIntensityToAbsorption;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Color deconvolution for any number of stains and channels. Where {@link StainMatrixIJ2} is limited to three stains
+ * in an RGB image, this class takes a channels x stains matrix, for example four or five chromogens in a multiplex
+ * brightfield image or a multispectral image with more than three channels.
+ * <p>
+ * The least-squares pseudo-inverse of the matrix is computed once, when the projection is created. Deconvolving a pixel
+ * then only takes a dot product per stain, without allocating anything.
+ */
+public class StainProjection {
+
+    private final int channels;
+    private final int stains;
+
+    //Row major stains x channels matrix that converts absorptions into stain concentrations
+    private final double[] inverse;
+
+    //These are the normalized Optical Densities for each stain
+    private final double[][] normOD;
+
+    StainProjection(int channels, int stains, double[] inverse, double[][] normOD) {
+        this.channels = channels;
+        this.stains = stains;
+        this.inverse = inverse;
+        this.normOD = normOD;
+    }
+
+    /**
+     * Create a projection from the optical density vectors of each stain. The vectors need not be normalized as that is
+     * done by the computation, but they must all have the same length: the number of channels of the images to
+     * deconvolve. There can be no more stains than channels.
+     *
+     * @param stainVectors the optical density vector of each stain, one value per channel
+     * @return the projection of absorptions onto the given stains
+     * @throws IllegalArgumentException when the vectors are empty, of different lengths, zero or linearly dependent
+     */
+    public static StainProjection fromStainVectors(double[]... stainVectors) {
+        int stains = stainVectors.length;
+        if (stains == 0) {
+            throw new IllegalArgumentException("At least one stain vector is needed");
+        }
+        int channels = stainVectors[0].length;
+        if (stains > channels) {
+            throw new IllegalArgumentException(stains + " stains cannot be separated in " + channels + " channels");
+        }
+        double[][] normOD = new double[stains][];
+        for (int stain = 0; stain < stains; stain++) {
+            if (stainVectors[stain].length != channels) {
+                throw new IllegalArgumentException("Stain " + (stain + 1) + " has " + stainVectors[stain].length
+                        + " channels instead of " + channels);
+            }
+            normOD[stain] = normalize(stainVectors[stain]);
+        }
+        return new StainProjection(channels, stains, pseudoInverse(normOD, channels), normOD);
+    }
+
+    public int numChannels() {
+        return channels;
+    }
+
+    public int numStains() {
+        return stains;
+    }
+
+    /**
+     * @return a copy of the row major stains x channels matrix that converts absorptions into stain concentrations
+     */
+    public double[] getInverse() {
+        return inverse.clone();
+    }
+
+    /**
+     * Project the absorptions of a single pixel onto the stains.
+     *
+     * @param absorption     the absorption of each channel, as returned by
+     *                       {@link StainMatrixIJ2#convertIntensityToAbsorption(int)}
+     * @param concentrations receives the absorption of each stain
+     */
+    public void project(double[] absorption, double[] concentrations) {
+        for (int stain = 0, row = 0; stain < stains; stain++, row += channels) {
+            double sum = 0;
+            for (int channel = 0; channel < channels; channel++) {
+                sum += absorption[channel] * inverse[row + channel];
+            }
+            concentrations[stain] = sum;
+        }
+    }
+
+    /**
+     * Deconvolve an 8-bit image with the channels in its last dimension into an 8-bit image per stain, using all
+     * available processors.
+     *
+     * @param image the image to deconvolve, with {@link #numChannels()} channels in its last dimension
+     * @return an 8-bit image per stain
+     */
+    public ImgPlus<UnsignedByteType>[] compute(RandomAccessibleInterval<UnsignedByteType> image) {
+        return compute(image, (stain, dimensions) -> ArrayImgs.unsignedBytes(dimensions), true);
+    }
+
+    /**
+     * Deconvolve an 8-bit image with the channels in its last dimension into an 8-bit image per stain.
+     *
+     * @param image         the image to deconvolve, with {@link #numChannels()} channels in its last dimension
+     * @param factory       the factory creating the output image of each stain
+     * @param multiThreaded whether to deconvolve parts of the image in parallel
+     * @return an 8-bit image per stain
+     */
+    public ImgPlus<UnsignedByteType>[] compute(RandomAccessibleInterval<UnsignedByteType> image,
+                                               StainImgFactory factory, boolean multiThreaded) {
+        return compute(image, factory, multiThreaded, () -> false);
+    }
+
+    /**
+     * Deconvolve like {@link #compute(RandomAccessibleInterval, StainImgFactory, boolean)}, but stop early when the
+     * computation is no longer needed. The parts of the image are skipped once cancelled returns true.
+     *
+     * @param cancelled tells whether the computation has been cancelled
+     * @throws CancellationException when the computation was cancelled before it completed
+     */
+    ImgPlus<UnsignedByteType>[] compute(RandomAccessibleInterval<UnsignedByteType> image, StainImgFactory factory,
+                                        boolean multiThreaded, BooleanSupplier cancelled) {
+        int channelAxis = image.numDimensions() - 1;
+        if (image.dimension(channelAxis) != channels) {
+            throw new IllegalArgumentException("Expected " + channels + " channels but the image has "
+                    + image.dimension(channelAxis));
+        }
+
+        @SuppressWarnings("unchecked")
+        RandomAccessibleInterval<UnsignedByteType>[] channelImages = new RandomAccessibleInterval[channels];
+        for (int channel = 0; channel < channels; channel++) {
+            channelImages[channel] = Views.zeroMin(Views.hyperSlice(image, channelAxis, image.min(channelAxis) + channel));
+        }
+        long[] dimensions = Intervals.dimensionsAsLongArray(channelImages[0]);
+
+        @SuppressWarnings("unchecked")
+        Img<UnsignedByteType>[] outputs = new Img[stains];
+        for (int stain = 0; stain < stains; stain++) {
+            outputs[stain] = factory.create(stain, dimensions);
+        }
+
+        List<Interval> chunks = Tiling.chunks(dimensions, multiThreaded);
+        (multiThreaded ? chunks.parallelStream() : chunks.stream()).forEach(chunk -> {
+            if (!cancelled.getAsBoolean()) {
+                deconvolve(channelImages, outputs, chunk);
+            }
+        });
+        if (cancelled.getAsBoolean()) {
+            throw new CancellationException("The deconvolution was cancelled");
+        }
+
+        @SuppressWarnings("unchecked")
+        ImgPlus<UnsignedByteType>[] outputImages = new ImgPlus[stains];
+        for (int stain = 0; stain < stains; stain++) {
+            outputImages[stain] = new ImgPlus<>(outputs[stain]);
+        }
+        if (channels == 3) {
+            StainMatrixIJ2.initializeColorTables(outputImages, normOD);
+        }
+        return outputImages;
+    }
+
+    private void deconvolve(RandomAccessibleInterval<UnsignedByteType>[] channelImages,
+                            Img<UnsignedByteType>[] outputs, Interval interval) {
+        @SuppressWarnings("unchecked")
+        Cursor<UnsignedByteType>[] in = new Cursor[channels];
+        for (int channel = 0; channel < channels; channel++) {
+            in[channel] = Views.flatIterable(Views.interval(channelImages[channel], interval)).cursor();
+        }
+        @SuppressWarnings("unchecked")
+        Cursor<UnsignedByteType>[] out = new Cursor[stains];
+        for (int stain = 0; stain < stains; stain++) {
+            out[stain] = Views.flatIterable(Views.interval(outputs[stain], interval)).cursor();
+        }
+        double[] absorption = new double[channels];
+        double[] concentrations = new double[stains];
+        while (in[0].hasNext()) {
+            for (int channel = 0; channel < channels; channel++) {
+                absorption[channel] = convertIntensityToAbsorption(in[channel].next().get());
+            }
+            project(absorption, concentrations);
+            for (int stain = 0; stain < stains; stain++) {
+                out[stain].next().set(convertAbsorptionToIntensity(concentrations[stain]));
+            }
+        }
+    }
+
+    private static double[] normalize(double[] vector) {
+        double length = 0;
+        for (double value : vector) {
+            length += value * value;
+        }
+        length = Math.sqrt(length);
+        if (length == 0.0) {
+            throw new IllegalArgumentException("Stain vectors cannot be 0");
+        }
+        double[] normalized = new double[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            normalized[i] = vector[i] / length;
+        }
+        return normalized;
+    }
+
+    /**
+     * Compute the least-squares pseudo-inverse (A<sup>T</sup>A)<sup>-1</sup>A<sup>T</sup> of the channels x stains
+     * matrix A, whose columns are the stain vectors. When there are as many stains as channels this is the ordinary
+     * inverse.
+     *
+     * @param normOD   the normalized stain vectors, the columns of A
+     * @param channels the number of channels
+     * @return the row major stains x channels pseudo-inverse
+     * @see <a href="https://en.wikipedia.org/wiki/Moore%E2%80%93Penrose_inverse">Wikipedia definition of the
+     * pseudo-inverse</a>
+     */
+    static double[] pseudoInverse(double[][] normOD, int channels) {
+        int stains = normOD.length;
+        // Augment A^T A with A^T, so Gauss-Jordan elimination turns the right half into (A^T A)^-1 A^T
+        int columns = stains + channels;
+        double[][] augmented = new double[stains][columns];
+        for (int row = 0; row < stains; row++) {
+            for (int column = 0; column < stains; column++) {
+                double dot = 0;
+                for (int channel = 0; channel < channels; channel++) {
+                    dot += normOD[row][channel] * normOD[column][channel];
+                }
+                augmented[row][column] = dot;
+            }
+            System.arraycopy(normOD[row], 0, augmented[row], stains, channels);
+        }
+
+        for (int pivot = 0; pivot < stains; pivot++) {
+            int best = pivot;
+            for (int row = pivot + 1; row < stains; row++) {
+                if (Math.abs(augmented[row][pivot]) > Math.abs(augmented[best][pivot])) {
+                    best = row;
+                }
+            }
+            if (Math.abs(augmented[best][pivot]) < 1e-12) {
+                throw new IllegalArgumentException("The stain vectors are linearly dependent and cannot be separated");
+            }
+            double[] swap = augmented[pivot];
+            augmented[pivot] = augmented[best];
+            augmented[best] = swap;
+
+            double scale = augmented[pivot][pivot];
+            for (int column = 0; column < columns; column++) {
+                augmented[pivot][column] /= scale;
+            }
+            for (int row = 0; row < stains; row++) {
+                double factor = augmented[row][pivot];
+                if (row != pivot && factor != 0.0) {
+                    for (int column = 0; column < columns; column++) {
+                        augmented[row][column] -= factor * augmented[pivot][column];
+                    }
+                }
+            }
+        }
+
+        double[] inverse = new double[stains * channels];
+        for (int stain = 0; stain < stains; stain++) {
+            System.arraycopy(augmented[stain], stains, inverse, stain * channels, channels);
+        }
+        return inverse;
+    }
+}
@@ -0,0 +1,257 @@
+package sc.fiji.colorDeconvolution;
+
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.B;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.G;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.R;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+import net.imagej.ImgPlus;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.ColorChannelOrder;
+import net.imglib2.converter.Converters;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+/**
+ * Estimates the stain vectors of a two stain image, such as H&amp;E or H DAB, from the image itself. This uses the
+ * method described in:
+ * <p>
+ * Macenko M, Niethammer M, Marron JS, et al. A method for normalizing histology slides for quantitative analysis.
+ * IEEE International Symposium on Biomedical Imaging 2009; 1107-1110.
+ * <p>
+ * The optical densities of the tissue pixels span a plane, found as the two main directions of a random sample of
+ * pixels. The stain vectors are the two most extreme directions within that plane. Only a bounded sample of pixels is
+ * taken, so estimation on a whole slide takes about as long as on a single field of view.
+ */
+public class StainVectorEstimator {
+
+    public static final long DEFAULT_TILE_SIZE = 512;
+    public static final int DEFAULT_SAMPLES_PER_TILE = 256;
+    public static final int DEFAULT_MAXIMUM_SAMPLES = 100000;
+
+    /**
+     * The percentile of the angles used as the extreme directions, so a few outliers do not determine the stains
+     */
+    private static final double ANGLE_PERCENTILE = 0.01;
+
+    /**
+     * The smallest number of tissue pixels that span a plane
+     */
+    private static final int MINIMUM_SAMPLES = 2;
+
+    private final OpticalDensitySampler sampler;
+
+    /**
+     * Create an estimator with the default sampling parameters.
+     */
+    public StainVectorEstimator() {
+        this(DEFAULT_TILE_SIZE, DEFAULT_SAMPLES_PER_TILE, DEFAULT_MAXIMUM_SAMPLES, 0);
+    }
+
+    /**
+     * @param tileSize       the width and height of the tiles to draw samples from
+     * @param samplesPerTile the number of pixels to draw from each tile
+     * @param maximumSamples the maximum number of tissue pixels to estimate from, which bounds memory use
+     * @param seed           the seed of the random generator, so an estimate can be repeated
+     */
+    public StainVectorEstimator(long tileSize, int samplesPerTile, int maximumSamples, long seed) {
+        this.sampler = new OpticalDensitySampler(tileSize, samplesPerTile, maximumSamples, seed);
+    }
+
+    /**
+     * Estimate the stain vectors of an RGB image.
+     *
+     * @param imp : The ImagePlus to estimate the stains of. RGB only.
+     * @return the normalized optical density vector of stain 1 and stain 2, in red, green and blue order
+     * @throws IllegalArgumentException when the image has too little tissue to estimate stains from
+     */
+    public double[][] estimate(ImgPlus<UnsignedByteType> imp) {
+        return estimate(Converters.mergeARGB(imp.getImg(), ColorChannelOrder.RGB));
+    }
+
+    /**
+     * Estimate the stain vectors of an RGB image. The image is only accessed at the sampled pixels, so it can be a lazily
+     * loaded view of a very large slide.
+     *
+     * @param image the image to estimate the stains of
+     * @return the normalized optical density vector of stain 1 and stain 2, in red, green and blue order
+     * @throws IllegalArgumentException when the image has too little tissue to estimate stains from
+     */
+    public double[][] estimate(RandomAccessibleInterval<ARGBType> image) {
+        double[] samples = sampler.sample(image);
+        return estimate(samples, samples.length / 3);
+    }
+
+    /**
+     * Estimate the stain vectors of an RGB image like {@link #estimate(RandomAccessibleInterval)}, but report an image
+     * with too little tissue, such as an empty part of a slide, instead of throwing.
+     *
+     * @param image the image to estimate the stains of
+     * @return the normalized optical density vector of stain 1 and stain 2, in red, green and blue order, or nothing
+     * when the image has too little tissue to estimate stains from
+     */
+    public Optional<double[][]> estimateIfTissue(RandomAccessibleInterval<ARGBType> image) {
+        double[] samples = sampler.sample(image);
+        int count = samples.length / 3;
+        return count < MINIMUM_SAMPLES ? Optional.empty() : Optional.of(estimate(samples, count));
+    }
+
+    /**
+     * Estimate the stain vectors of an RGB image and initialize a stain matrix with them. The third stain is left
+     * unspecified, so it becomes the remainder.
+     *
+     * @param imp : The ImagePlus to estimate the stains of. RGB only.
+     * @return a stain matrix initialized with the estimated stain vectors
+     * @throws IllegalArgumentException when the image has too little tissue to estimate stains from
+     */
+    public StainMatrixIJ2 estimateStainMatrix(ImgPlus<UnsignedByteType> imp) {
+        double[][] stains = estimate(imp);
+        StainMatrixIJ2 stainMatrix = new StainMatrixIJ2();
+        stainMatrix.init("Estimated stain", stains[0][R], stains[0][G], stains[0][B],
+                stains[1][R], stains[1][G], stains[1][B], 0, 0, 0);
+        return stainMatrix;
+    }
+
+    /**
+     * Estimate two stain vectors from absorptions of tissue pixels.
+     *
+     * @param samples the absorbed red, green and blue values of the pixels, one pixel after the other
+     * @param count   the number of pixels
+     * @return the normalized optical density vector of stain 1 and stain 2
+     * @throws IllegalArgumentException when there are too few pixels, or an extreme direction has no positive optical
+     *                                  density
+     */
+    static double[][] estimate(double[] samples, int count) {
+        if (count < MINIMUM_SAMPLES) {
+            throw new IllegalArgumentException("Not enough tissue in the image to estimate stain vectors");
+        }
+
+        // The plane of the optical densities is spanned by the two main eigenvectors of the second moment matrix
+        double[][] moments = new double[3][3];
+        for (int pixel = 0; pixel < count; pixel++) {
+            for (int row = 0; row < 3; row++) {
+                for (int column = row; column < 3; column++) {
+                    moments[row][column] += samples[pixel * 3 + row] * samples[pixel * 3 + column];
+                }
+            }
+        }
+        for (int row = 0; row < 3; row++) {
+            for (int column = 0; column < row; column++) {
+                moments[row][column] = moments[column][row];
+            }
+        }
+        double[][] eigenvectors = new double[3][];
+        double[] eigenvalues = symmetricEigen(moments, eigenvectors);
+        Integer[] order = {0, 1, 2};
+        Arrays.sort(order, (a, b) -> Double.compare(eigenvalues[b], eigenvalues[a]));
+        double[] first = positive(eigenvectors[order[0]]);
+        double[] second = positive(eigenvectors[order[1]]);
+
+        double[] angles = new double[count];
+        for (int pixel = 0; pixel < count; pixel++) {
+            double x = 0;
+            double y = 0;
+            for (int channel = 0; channel < 3; channel++) {
+                x += samples[pixel * 3 + channel] * first[channel];
+                y += samples[pixel * 3 + channel] * second[channel];
+            }
+            angles[pixel] = Math.atan2(y, x);
+        }
+        Arrays.sort(angles);
+        double minimumAngle = angles[(int) Math.floor(ANGLE_PERCENTILE * (count - 1))];
+        double maximumAngle = angles[(int) Math.ceil((1 - ANGLE_PERCENTILE) * (count - 1))];
+
+        double[] stainA = inPlane(first, second, minimumAngle);
+        double[] stainB = inPlane(first, second, maximumAngle);
+        // Put the stain absorbing most red first, such as hematoxylin before eosin or DAB
+        return stainA[R] > stainB[R] ? new double[][]{stainA, stainB} : new double[][]{stainB, stainA};
+    }
+
+    private static double[] inPlane(double[] first, double[] second, double angle) {
+        double[] vector = new double[3];
+        double length = 0;
+        for (int channel = 0; channel < 3; channel++) {
+            vector[channel] = Math.max(0, Math.cos(angle) * first[channel] + Math.sin(angle) * second[channel]);
+            length += vector[channel] * vector[channel];
+        }
+        length = Math.sqrt(length);
+        if (length == 0) {
+            // All optical densities in this direction are negative, so it cannot be the direction of a stain
+            throw new IllegalArgumentException("The sampled pixels do not span a plane of positive optical densities to estimate stain vectors from");
+        }
+        for (int channel = 0; channel < 3; channel++) {
+            vector[channel] /= length;
+        }
+        return vector;
+    }
+
+    /**
+     * Eigenvectors are only determined up to their sign, so flip them to point in the direction of positive optical
+     * densities.
+     */
+    private static double[] positive(double[] vector) {
+        if (vector[R] + vector[G] + vector[B] < 0) {
+            return new double[]{-vector[R], -vector[G], -vector[B]};
+        }
+        return vector;
+    }
+
+    /**
+     * Compute the eigenvalues and eigenvectors of a symmetric 3x3 matrix with the Jacobi eigenvalue algorithm.
+     *
+     * @param matrix       the symmetric matrix, which is overwritten
+     * @param eigenvectors receives the three eigenvectors
+     * @return the eigenvalue of each eigenvector
+     * @see <a href="https://en.wikipedia.org/wiki/Jacobi_eigenvalue_algorithm">Wikipedia on the Jacobi eigenvalue
+     * algorithm</a>
+     */
+    static double[] symmetricEigen(double[][] matrix, double[][] eigenvectors) {
+        double[][] rotations = {{1, 0, 0}, {0, 1, 0}, {0, 0, 1}};
+        for (int sweep = 0; sweep < 50; sweep++) {
+            double offDiagonal = Math.abs(matrix[0][1]) + Math.abs(matrix[0][2]) + Math.abs(matrix[1][2]);
+            if (offDiagonal < 1e-12 * (Math.abs(matrix[0][0]) + Math.abs(matrix[1][1]) + Math.abs(matrix[2][2]))) {
+                break;
+            }
+            for (int p = 0; p < 2; p++) {
+                for (int q = p + 1; q < 3; q++) {
+                    if (matrix[p][q] == 0.0) {
+                        continue;
+                    }
+                    double theta = (matrix[q][q] - matrix[p][p]) / (2 * matrix[p][q]);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0.0) {
+                        t = 1;
+                    }
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+                    for (int k = 0; k < 3; k++) {
+                        double kp = matrix[k][p];
+                        double kq = matrix[k][q];
+                        matrix[k][p] = c * kp - s * kq;
+                        matrix[k][q] = s * kp + c * kq;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        double pk = matrix[p][k];
+                        double qk = matrix[q][k];
+                        matrix[p][k] = c * pk - s * qk;
+                        matrix[q][k] = s * pk + c * qk;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        double kp = rotations[k][p];
+                        double kq = rotations[k][q];
+                        rotations[k][p] = c * kp - s * kq;
+                        rotations[k][q] = s * kp + c * kq;
+                    }
+                }
+            }
+        }
+        double[] eigenvalues = new double[3];
+        for (int i = 0; i < 3; i++) {
+            eigenvalues[i] = matrix[i][i];
+            eigenvectors[i] = new double[]{rotations[0][i], rotations[1][i], rotations[2][i]};
+        }
+        return eigenvalues;
+    }
+}
@@ -0,0 +1,133 @@
+package sc.fiji.colorDeconvolution;
+
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.B;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.G;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.R;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.convertIntensityToAbsorption;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.stream.LongStream;
+
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import ij.process.FloatPolygon;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.view.Views;
+
+/**
+ * Measures the optical density vector of a stain from a region of a single-stain control slide, like the "From ROI"
+ * option of the ImageJ1 plugin.
+ * <p>
+ * Only the pixels inside the region are visited, row by row in parallel, and their absorptions are summed without
+ * storing them, so the region can be as large as the image. The pixels of a row inside the region are found from the
+ * outline of the region, without creating its mask.
+ */
+public final class StainVectorMeasurement {
+
+    private static final int SUM_R = 0;
+    private static final int SUM_G = 1;
+    private static final int SUM_B = 2;
+    private static final int COUNT = 3;
+
+    private StainVectorMeasurement() {
+    }
+
+    /**
+     * Measure the mean optical density vector of the pixels in a region.
+     *
+     * @param image the RGB image, with its top left pixel at the origin of the region coordinates
+     * @param roi   the region to measure, with the stain only
+     * @return the mean absorbed red, green and blue, normalized to a length of 1
+     * @throws IllegalArgumentException when the region contains no pixels of the image, or only white ones
+     */
+    public static double[] meanOpticalDensity(RandomAccessibleInterval<ARGBType> image, Roi roi) {
+        double[] sums = sumAbsorptions(image, roi);
+        if (sums[COUNT] == 0) {
+            throw new IllegalArgumentException("The region " + roi.getName() + " contains no pixels of the image");
+        }
+        double length = Math.sqrt(sums[SUM_R] * sums[SUM_R] + sums[SUM_G] * sums[SUM_G] + sums[SUM_B] * sums[SUM_B]);
+        if (length == 0) {
+            throw new IllegalArgumentException("The region " + roi.getName() + " contains no stain");
+        }
+        return new double[]{sums[SUM_R] / length, sums[SUM_G] / length, sums[SUM_B] / length};
+    }
+
+    /**
+     * @return the summed absorbed red, green and blue of the pixels in the region, followed by the number of pixels
+     */
+    static double[] sumAbsorptions(RandomAccessibleInterval<ARGBType> image, Roi roi) {
+        Rectangle bounds = roi.getBounds();
+        long minX = Math.max(image.min(0), image.min(0) + bounds.x);
+        long maxX = Math.min(image.max(0), image.min(0) + bounds.x + bounds.width - 1);
+        long minY = Math.max(image.min(1), image.min(1) + bounds.y);
+        long maxY = Math.min(image.max(1), image.min(1) + bounds.y + bounds.height - 1);
+        if (minX > maxX || minY > maxY) {
+            return new double[4];
+        }
+        // Composite regions can have holes, so they are tested pixel by pixel instead of by their outline
+        FloatPolygon outline = roi instanceof ShapeRoi ? null : roi.getFloatPolygon();
+
+        return LongStream.rangeClosed(minY, maxY).parallel().collect(() -> new double[4], (sums, y) -> {
+            if (outline == null) {
+                sumContained(image, roi, minX, maxX, y, sums);
+                return;
+            }
+            double[] crossings = crossings(outline, y - image.min(1) + 0.5);
+            for (int i = 0; i + 1 < crossings.length; i += 2) {
+                // The pixels with their center between two crossings are inside the region, like in its mask
+                long spanMinX = Math.max(minX, image.min(0) + (long) Math.ceil(crossings[i] - 0.5));
+                long spanMaxX = Math.min(maxX, image.min(0) + (long) Math.ceil(crossings[i + 1] - 0.5) - 1);
+                if (spanMinX <= spanMaxX) {
+                    for (ARGBType pixel : Views.interval(image, new long[]{spanMinX, y}, new long[]{spanMaxX, y})) {
+                        add(pixel.get(), sums);
+                    }
+                }
+            }
+        }, (sums, other) -> {
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += other[i];
+            }
+        });
+    }
+
+    /**
+     * @return the sorted x coordinates where a horizontal line crosses the edges of a polygon
+     */
+    private static double[] crossings(FloatPolygon polygon, double y) {
+        double[] crossings = new double[polygon.npoints];
+        int count = 0;
+        for (int i = 0, previous = polygon.npoints - 1; i < polygon.npoints; previous = i++) {
+            double y1 = polygon.ypoints[previous];
+            double y2 = polygon.ypoints[i];
+            if ((y1 <= y) != (y2 <= y)) {
+                double x1 = polygon.xpoints[previous];
+                double x2 = polygon.xpoints[i];
+                crossings[count++] = x1 + (y - y1) * (x2 - x1) / (y2 - y1);
+            }
+        }
+        double[] sorted = Arrays.copyOf(crossings, count);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static void sumContained(RandomAccessibleInterval<ARGBType> image, Roi roi, long minX, long maxX, long y,
+                                     double[] sums) {
+        Cursor<ARGBType> row = Views.flatIterable(Views.interval(image, new long[]{minX, y}, new long[]{maxX, y})).cursor();
+        for (long x = minX; x <= maxX; x++) {
+            int rgba = row.next().get();
+            if (roi.contains((int) (x - image.min(0)), (int) (y - image.min(1)))) {
+                add(rgba, sums);
+            }
+        }
+    }
+
+    private static void add(int rgba, double[] sums) {
+        sums[SUM_R] += convertIntensityToAbsorption(ARGBType.red(rgba));
+        sums[SUM_G] += convertIntensityToAbsorption(ARGBType.green(rgba));
+        sums[SUM_B] += convertIntensityToAbsorption(ARGBType.blue(rgba));
+        sums[COUNT]++;
+    }
+}
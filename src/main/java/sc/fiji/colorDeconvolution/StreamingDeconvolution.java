@@ -0,0 +1,151 @@
+package sc.fiji.colorDeconvolution;
+
+import static sc.fiji.colorDeconvolution.TiffStripReader.PHOTOMETRIC_RGB;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Deconvolves an RGB TIFF file into three 8-bit TIFF files, one strip at a time. Unlike opening the image and calling
+ * {@link StainMatrixIJ2#compute(net.imagej.ImgPlus)}, memory use does not depend on the size of the image, so this
+ * works for slides that do not fit in memory.
+ * <p>
+ * The input must be an uncompressed 8-bit RGB or RGBA TIFF or BigTIFF file, either striped or tiled. The three output
+ * files are written concurrently, each by its own thread, while the next strip is being deconvolved.
+ */
+public class StreamingDeconvolution {
+
+    /**
+     * The number of pixels that is read, deconvolved and written at a time
+     */
+    private static final int PIXELS_PER_BLOCK = 1 << 20;
+
+    private final StainMatrixIJ2 stainMatrix;
+
+    /**
+     * @param stainMatrix the initialized stain matrix to deconvolve with
+     */
+    public StreamingDeconvolution(StainMatrixIJ2 stainMatrix) {
+        this.stainMatrix = stainMatrix;
+    }
+
+    /**
+     * Deconvolve an RGB TIFF file and write each stain to its own 8-bit TIFF file. Existing output files are
+     * overwritten.
+     *
+     * @param input   the RGB TIFF file to deconvolve
+     * @param output1 the file to write stain 1 to
+     * @param output2 the file to write stain 2 to
+     * @param output3 the file to write stain 3 to
+     * @throws IOException when the input cannot be read or is not a supported RGB TIFF, or an output cannot be written
+     */
+    public void deconvolve(Path input, Path output1, Path output2, Path output3) throws IOException {
+        double[] q = stainMatrix.initComputation(true);
+
+        ExecutorService writeThreads = Executors.newFixedThreadPool(3);
+        try (TiffStripReader reader = new TiffStripReader(input)) {
+            if (reader.getPhotometricInterpretation() != PHOTOMETRIC_RGB || reader.getSamplesPerPixel() < 3) {
+                throw new IOException(input + " is not an RGB image");
+            }
+            int width = reader.getWidth();
+            int height = reader.getHeight();
+            int samplesPerPixel = reader.getSamplesPerPixel();
+            int rowsPerBlock = rowsPerBlock(reader);
+
+            try (TiffStripWriter writer1 = new TiffStripWriter(output1, width, height, 1, rowsPerBlock);
+                 TiffStripWriter writer2 = new TiffStripWriter(output2, width, height, 1, rowsPerBlock);
+                 TiffStripWriter writer3 = new TiffStripWriter(output3, width, height, 1, rowsPerBlock)) {
+                TiffStripWriter[] writers = {writer1, writer2, writer3};
+
+                byte[] rgb = new byte[rowsPerBlock * width * samplesPerPixel];
+                // Two sets of stain buffers, so one can be written while the other is being filled
+                byte[][][] stains = new byte[2][3][rowsPerBlock * width];
+                Future<?>[][] pending = new Future<?>[2][];
+
+                int set = 0;
+                try {
+                    for (int y = 0; y < height; y += rowsPerBlock, set = 1 - set) {
+                        int rows = Math.min(rowsPerBlock, height - y);
+                        reader.readRows(y, rows, rgb);
+                        byte[][] out = stains[set];
+                        StainMatrixIJ2.deconvolveInterleaved(q, rgb, samplesPerPixel, rows * width, out[0], out[1], out[2]);
+                        // The writers must see the strips in order, so wait for the previous strip before writing this one
+                        await(pending[1 - set]);
+                        pending[1 - set] = null;
+                        pending[set] = new Future<?>[3];
+                        for (int stain = 0; stain < 3; stain++) {
+                            TiffStripWriter writer = writers[stain];
+                            byte[] strip = out[stain];
+                            pending[set][stain] = writeThreads.submit(() -> {
+                                writer.writeRows(strip, rows);
+                                return null;
+                            });
+                        }
+                    }
+                    await(pending[0]);
+                    await(pending[1]);
+                } finally {
+                    // When reading fails, writes may still be running. Closing the writers under them would make them
+                    // fail as well, so let them finish first.
+                    finish(pending[0]);
+                    finish(pending[1]);
+                }
+            }
+        } finally {
+            writeThreads.shutdownNow();
+        }
+    }
+
+    private static int rowsPerBlock(TiffStripReader reader) {
+        int rows = Math.max(1, PIXELS_PER_BLOCK / Math.max(1, reader.getWidth()));
+        if (reader.isTiled()) {
+            // Tiles are read as a whole, so read whole rows of tiles to never read a tile twice
+            int tileHeight = reader.getBlockHeight();
+            rows = Math.max(1, rows / tileHeight) * tileHeight;
+        }
+        return Math.max(1, Math.min(rows, reader.getHeight()));
+    }
+
+    /**
+     * Wait for writes without reporting their failures, which {@link #await(Future[])} does, or which are hidden by the
+     * failure that is already being thrown.
+     */
+    private static void finish(Future<?>[] futures) {
+        if (futures == null) {
+            return;
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // Reported by await or hidden by the failure being thrown
+            }
+        }
+    }
+
+    private static void await(Future<?>[] futures) throws IOException {
+        if (futures == null) {
+            return;
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Writing failed", e.getCause());
+            }
+        }
+    }
+}
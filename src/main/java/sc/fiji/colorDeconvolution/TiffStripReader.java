@@ -0,0 +1,343 @@
+package sc.fiji.colorDeconvolution;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads rows of pixels from the first image of an uncompressed 8-bit TIFF or BigTIFF file, without loading the whole
+ * image in memory. Both striped and tiled files are supported, as long as the samples of a pixel are stored together
+ * (chunky planar configuration).
+ * <p>
+ * The rows are read with positional reads on a {@link FileChannel}, so memory use only depends on the number of rows
+ * requested at a time. Read in multiples of {@link #getBlockHeight()} rows to never read the same data twice.
+ */
+class TiffStripReader implements Closeable {
+
+    static final int IMAGE_WIDTH = 256;
+    static final int IMAGE_LENGTH = 257;
+    static final int BITS_PER_SAMPLE = 258;
+    static final int COMPRESSION = 259;
+    static final int PHOTOMETRIC_INTERPRETATION = 262;
+    static final int STRIP_OFFSETS = 273;
+    static final int SAMPLES_PER_PIXEL = 277;
+    static final int ROWS_PER_STRIP = 278;
+    static final int STRIP_BYTE_COUNTS = 279;
+    static final int PLANAR_CONFIGURATION = 284;
+    static final int TILE_WIDTH = 322;
+    static final int TILE_LENGTH = 323;
+    static final int TILE_OFFSETS = 324;
+    static final int TILE_BYTE_COUNTS = 325;
+
+    static final int TYPE_BYTE = 1;
+    static final int TYPE_SHORT = 3;
+    static final int TYPE_LONG = 4;
+    static final int TYPE_LONG8 = 16;
+
+    static final int CLASSIC_TIFF = 42;
+    static final int BIG_TIFF = 43;
+
+    static final int PHOTOMETRIC_BLACK_IS_ZERO = 1;
+    static final int PHOTOMETRIC_RGB = 2;
+
+    private final FileChannel channel;
+    private final ByteOrder byteOrder;
+    private final int width;
+    private final int height;
+    private final int samplesPerPixel;
+    private final int photometricInterpretation;
+    private final boolean tiled;
+    private final int blockWidth;
+    private final int blockHeight;
+    private final long[] offsets;
+
+    private final byte[] tileBuffer;
+    private int bufferedTile = -1;
+
+    /**
+     * Open a TIFF file and read the tags of its first image.
+     *
+     * @param file the TIFF file to read
+     * @throws IOException when the file cannot be read, or is not an uncompressed 8-bit TIFF with chunky pixels
+     */
+    TiffStripReader(Path file) throws IOException {
+        channel = FileChannel.open(file, READ);
+        try {
+            ByteBuffer header = read(0, 16, ByteOrder.LITTLE_ENDIAN);
+            byte order = header.get(0);
+            if (order == 'I' && header.get(1) == 'I') {
+                byteOrder = ByteOrder.LITTLE_ENDIAN;
+            } else if (order == 'M' && header.get(1) == 'M') {
+                byteOrder = ByteOrder.BIG_ENDIAN;
+            } else {
+                throw new IOException(file + " is not a TIFF file");
+            }
+            header.order(byteOrder);
+            int version = header.getShort(2);
+            Map<Integer, long[]> tags;
+            if (version == CLASSIC_TIFF) {
+                tags = readDirectory(header.getInt(4) & 0xffffffffL, false);
+            } else if (version == BIG_TIFF) {
+                tags = readDirectory(header.getLong(8), true);
+            } else {
+                throw new IOException(file + " is not a TIFF file");
+            }
+
+            width = (int) required(tags, IMAGE_WIDTH)[0];
+            height = (int) required(tags, IMAGE_LENGTH)[0];
+            samplesPerPixel = (int) optional(tags, SAMPLES_PER_PIXEL, 1);
+            photometricInterpretation = (int) optional(tags, PHOTOMETRIC_INTERPRETATION, PHOTOMETRIC_BLACK_IS_ZERO);
+            for (long bits : optionalArray(tags, BITS_PER_SAMPLE, 1)) {
+                if (bits != 8) {
+                    throw new IOException("Only 8 bits per sample are supported, " + file + " has " + bits);
+                }
+            }
+            if (optional(tags, COMPRESSION, 1) != 1) {
+                throw new IOException("Only uncompressed TIFF files are supported: " + file);
+            }
+            if (optional(tags, PLANAR_CONFIGURATION, 1) != 1 && samplesPerPixel > 1) {
+                throw new IOException("Only chunky (interleaved) TIFF files are supported: " + file);
+            }
+
+            tiled = tags.containsKey(TILE_OFFSETS);
+            if (tiled) {
+                blockWidth = (int) required(tags, TILE_WIDTH)[0];
+                blockHeight = (int) required(tags, TILE_LENGTH)[0];
+                offsets = required(tags, TILE_OFFSETS);
+                tileBuffer = new byte[blockWidth * blockHeight * samplesPerPixel];
+            } else {
+                blockWidth = width;
+                blockHeight = (int) Math.min(optional(tags, ROWS_PER_STRIP, height), height);
+                offsets = required(tags, STRIP_OFFSETS);
+                tileBuffer = null;
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getSamplesPerPixel() {
+        return samplesPerPixel;
+    }
+
+    int getPhotometricInterpretation() {
+        return photometricInterpretation;
+    }
+
+    /**
+     * @return true when the pixels are stored in tiles rather than strips
+     */
+    boolean isTiled() {
+        return tiled;
+    }
+
+    /**
+     * @return the number of rows that are stored together in a strip or a row of tiles
+     */
+    int getBlockHeight() {
+        return blockHeight;
+    }
+
+    /**
+     * Read whole rows of interleaved pixels.
+     *
+     * @param y    the first row to read
+     * @param rows the number of rows to read
+     * @param dest receives the samples, at least width * samplesPerPixel * rows bytes
+     * @throws IOException when the file cannot be read
+     */
+    void readRows(int y, int rows, byte[] dest) throws IOException {
+        readRegion(0, y, width, rows, dest);
+    }
+
+    /**
+     * Read a rectangular region of interleaved pixels.
+     *
+     * @param x      the first column to read
+     * @param y      the first row to read
+     * @param w      the number of columns to read
+     * @param h      the number of rows to read
+     * @param dest   receives the samples, at least w * samplesPerPixel * h bytes
+     * @throws IOException when the file cannot be read
+     */
+    void readRegion(int x, int y, int w, int h, byte[] dest) throws IOException {
+        if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > width || y + h > height) {
+            throw new IllegalArgumentException("Region outside of the " + width + "x" + height + " image");
+        }
+        int rowLength = w * samplesPerPixel;
+        if (tiled) {
+            readTiledRegion(x, y, w, h, dest, rowLength);
+        } else if (w == width) {
+            // Full rows are contiguous within a strip, so read each part of a strip at once
+            for (int row = 0; row < h; ) {
+                int imageRow = y + row;
+                int strip = imageRow / blockHeight;
+                int rowInStrip = imageRow - strip * blockHeight;
+                int rowsFromStrip = Math.min(h - row, blockHeight - rowInStrip);
+                readFully(offsets[strip] + (long) rowInStrip * rowLength,
+                        ByteBuffer.wrap(dest, row * rowLength, rowsFromStrip * rowLength));
+                row += rowsFromStrip;
+            }
+        } else {
+            long stripRowLength = (long) width * samplesPerPixel;
+            for (int row = 0; row < h; row++) {
+                int imageRow = y + row;
+                int strip = imageRow / blockHeight;
+                long position = offsets[strip] + (imageRow - (long) strip * blockHeight) * stripRowLength
+                        + (long) x * samplesPerPixel;
+                readFully(position, ByteBuffer.wrap(dest, row * rowLength, rowLength));
+            }
+        }
+    }
+
+    private void readTiledRegion(int x, int y, int w, int h, byte[] dest, int rowLength) throws IOException {
+        int tilesAcross = (width + blockWidth - 1) / blockWidth;
+        int tileRowLength = blockWidth * samplesPerPixel;
+        for (int tileY = y / blockHeight; tileY * blockHeight < y + h; tileY++) {
+            for (int tileX = x / blockWidth; tileX * blockWidth < x + w; tileX++) {
+                int tile = tileY * tilesAcross + tileX;
+                if (bufferedTile != tile) {
+                    readFully(offsets[tile], ByteBuffer.wrap(tileBuffer));
+                    bufferedTile = tile;
+                }
+                int fromX = Math.max(x, tileX * blockWidth);
+                int toX = Math.min(x + w, (tileX + 1) * blockWidth);
+                int fromY = Math.max(y, tileY * blockHeight);
+                int toY = Math.min(y + h, (tileY + 1) * blockHeight);
+                for (int imageRow = fromY; imageRow < toY; imageRow++) {
+                    System.arraycopy(tileBuffer,
+                            (imageRow - tileY * blockHeight) * tileRowLength + (fromX - tileX * blockWidth) * samplesPerPixel,
+                            dest,
+                            (imageRow - y) * rowLength + (fromX - x) * samplesPerPixel,
+                            (toX - fromX) * samplesPerPixel);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private Map<Integer, long[]> readDirectory(long offset, boolean bigTiff) throws IOException {
+        int countSize = bigTiff ? 8 : 2;
+        int entrySize = bigTiff ? 20 : 12;
+        int valueSize = bigTiff ? 8 : 4;
+        ByteBuffer count = read(offset, countSize, byteOrder);
+        long entries = bigTiff ? count.getLong(0) : count.getShort(0) & 0xffff;
+        ByteBuffer directory = read(offset + countSize, (int) (entries * entrySize), byteOrder);
+
+        Map<Integer, long[]> tags = new HashMap<>();
+        for (int entry = 0; entry < entries; entry++) {
+            int start = entry * entrySize;
+            int tag = directory.getShort(start) & 0xffff;
+            int type = directory.getShort(start + 2) & 0xffff;
+            long valueCount = bigTiff ? directory.getLong(start + 4) : directory.getInt(start + 4) & 0xffffffffL;
+            int typeSize = typeSize(type);
+            if (typeSize == 0) {
+                continue;
+            }
+            long size = valueCount * typeSize;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Tag " + tag + " has too many values");
+            }
+            ByteBuffer values;
+            int valueStart = start + (bigTiff ? 12 : 8);
+            if (size <= valueSize) {
+                values = directory.duplicate().order(byteOrder);
+                values.position(valueStart);
+                values = values.slice().order(byteOrder);
+            } else {
+                long valuesOffset = bigTiff ? directory.getLong(valueStart) : directory.getInt(valueStart) & 0xffffffffL;
+                values = read(valuesOffset, (int) size, byteOrder);
+            }
+            long[] parsed = new long[(int) valueCount];
+            for (int i = 0; i < parsed.length; i++) {
+                parsed[i] = readValue(values, i * typeSize, type);
+            }
+            tags.put(tag, parsed);
+        }
+        return tags;
+    }
+
+    private static int typeSize(int type) {
+        switch (type) {
+            case TYPE_BYTE:
+                return 1;
+            case TYPE_SHORT:
+                return 2;
+            case TYPE_LONG:
+                return 4;
+            case TYPE_LONG8:
+                return 8;
+            default:
+                return 0;
+        }
+    }
+
+    private static long readValue(ByteBuffer values, int index, int type) {
+        switch (type) {
+            case TYPE_BYTE:
+                return values.get(index) & 0xff;
+            case TYPE_SHORT:
+                return values.getShort(index) & 0xffff;
+            case TYPE_LONG:
+                return values.getInt(index) & 0xffffffffL;
+            default:
+                return values.getLong(index);
+        }
+    }
+
+    private static long[] required(Map<Integer, long[]> tags, int tag) throws IOException {
+        long[] values = tags.get(tag);
+        if (values == null || values.length == 0) {
+            throw new IOException("Required TIFF tag " + tag + " is missing");
+        }
+        return values;
+    }
+
+    private static long optional(Map<Integer, long[]> tags, int tag, long defaultValue) {
+        long[] values = tags.get(tag);
+        return values == null || values.length == 0 ? defaultValue : values[0];
+    }
+
+    private static long[] optionalArray(Map<Integer, long[]> tags, int tag, long defaultValue) {
+        long[] values = tags.get(tag);
+        return values == null || values.length == 0 ? new long[]{defaultValue} : values;
+    }
+
+    private ByteBuffer read(long position, int size, ByteOrder order) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(order);
+        readFully(position, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void readFully(long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of TIFF file");
+            }
+            position += read;
+        }
+    }
+}
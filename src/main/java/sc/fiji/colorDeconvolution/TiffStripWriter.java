@@ -0,0 +1,240 @@
+package sc.fiji.colorDeconvolution;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static sc.fiji.colorDeconvolution.TiffStripReader.BIG_TIFF;
+import static sc.fiji.colorDeconvolution.TiffStripReader.BITS_PER_SAMPLE;
+import static sc.fiji.colorDeconvolution.TiffStripReader.CLASSIC_TIFF;
+import static sc.fiji.colorDeconvolution.TiffStripReader.COMPRESSION;
+import static sc.fiji.colorDeconvolution.TiffStripReader.IMAGE_LENGTH;
+import static sc.fiji.colorDeconvolution.TiffStripReader.IMAGE_WIDTH;
+import static sc.fiji.colorDeconvolution.TiffStripReader.PHOTOMETRIC_BLACK_IS_ZERO;
+import static sc.fiji.colorDeconvolution.TiffStripReader.PHOTOMETRIC_INTERPRETATION;
+import static sc.fiji.colorDeconvolution.TiffStripReader.PHOTOMETRIC_RGB;
+import static sc.fiji.colorDeconvolution.TiffStripReader.PLANAR_CONFIGURATION;
+import static sc.fiji.colorDeconvolution.TiffStripReader.ROWS_PER_STRIP;
+import static sc.fiji.colorDeconvolution.TiffStripReader.SAMPLES_PER_PIXEL;
+import static sc.fiji.colorDeconvolution.TiffStripReader.STRIP_BYTE_COUNTS;
+import static sc.fiji.colorDeconvolution.TiffStripReader.STRIP_OFFSETS;
+import static sc.fiji.colorDeconvolution.TiffStripReader.TYPE_LONG;
+import static sc.fiji.colorDeconvolution.TiffStripReader.TYPE_LONG8;
+import static sc.fiji.colorDeconvolution.TiffStripReader.TYPE_SHORT;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Writes an uncompressed 8-bit grayscale or RGB TIFF file strip by strip, so the image never has to be held in memory
+ * as a whole. The rows must be written in order, from top to bottom. The image directory is written when the writer is
+ * closed.
+ * <p>
+ * Because the strips are uncompressed and written in order, their offsets follow from the image size, so memory use
+ * does not grow with the number of rows written. Files that do not fit in the 4GB limit of a classic TIFF are written
+ * as BigTIFF.
+ */
+class TiffStripWriter implements Closeable {
+
+    private static final int CLASSIC_HEADER_SIZE = 8;
+    private static final int BIG_TIFF_HEADER_SIZE = 16;
+    private static final int NUMBER_OF_TAGS = 10;
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int samplesPerPixel;
+    private final int rowsPerStrip;
+    private final boolean bigTiff;
+    private final long rowLength;
+    private final long headerSize;
+
+    private int rowsWritten;
+
+    /**
+     * Create a new TIFF file, overwriting any existing file.
+     *
+     * @param file            the file to write
+     * @param width           the width of the image
+     * @param height          the height of the image
+     * @param samplesPerPixel 1 for grayscale or 3 for RGB
+     * @param rowsPerStrip    the number of rows stored together in a strip
+     * @throws IOException when the file cannot be created
+     */
+    TiffStripWriter(Path file, int width, int height, int samplesPerPixel, int rowsPerStrip) throws IOException {
+        if (samplesPerPixel != 1 && samplesPerPixel != 3) {
+            throw new IllegalArgumentException("Only grayscale or RGB images can be written");
+        }
+        this.width = width;
+        this.height = height;
+        this.samplesPerPixel = samplesPerPixel;
+        this.rowsPerStrip = Math.max(1, Math.min(rowsPerStrip, height));
+        this.rowLength = (long) width * samplesPerPixel;
+
+        // The directory and the strip arrays follow the pixels, with 8 bytes per strip for its offset and byte count
+        long directorySize = NUMBER_OF_TAGS * 20L + 64 + 16L * numberOfStrips();
+        this.bigTiff = CLASSIC_HEADER_SIZE + rowLength * height + directorySize > 0xffffffffL;
+        this.headerSize = bigTiff ? BIG_TIFF_HEADER_SIZE : CLASSIC_HEADER_SIZE;
+
+        channel = FileChannel.open(file, CREATE, WRITE, TRUNCATE_EXISTING);
+        channel.position(headerSize);
+    }
+
+    /**
+     * @return true when the file is written as BigTIFF because it does not fit in a classic TIFF
+     */
+    boolean isBigTiff() {
+        return bigTiff;
+    }
+
+    /**
+     * Append rows of interleaved pixels to the image.
+     *
+     * @param pixels the samples of the rows, starting with the first sample of the first row
+     * @param rows   the number of rows to write
+     * @throws IOException when the rows cannot be written
+     */
+    void writeRows(byte[] pixels, int rows) throws IOException {
+        if (rowsWritten + rows > height) {
+            throw new IllegalStateException("Writing more than " + height + " rows");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(pixels, 0, (int) (rows * rowLength));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        rowsWritten += rows;
+    }
+
+    /**
+     * Write the image directory and close the file.
+     *
+     * @throws IOException when not all rows were written or the file cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rowsWritten != height) {
+                throw new IOException("Only " + rowsWritten + " of " + height + " rows were written");
+            }
+            writeDirectory();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private int numberOfStrips() {
+        return (height + rowsPerStrip - 1) / rowsPerStrip;
+    }
+
+    private void writeDirectory() throws IOException {
+        int strips = numberOfStrips();
+        long[] stripOffsets = new long[strips];
+        long[] stripByteCounts = new long[strips];
+        for (int strip = 0; strip < strips; strip++) {
+            stripOffsets[strip] = headerSize + strip * rowsPerStrip * rowLength;
+            stripByteCounts[strip] = Math.min(rowsPerStrip, height - strip * rowsPerStrip) * rowLength;
+        }
+        int offsetType = bigTiff ? TYPE_LONG8 : TYPE_LONG;
+        long[] bitsPerSample = new long[samplesPerPixel];
+        Arrays.fill(bitsPerSample, 8);
+
+        long directoryOffset = headerSize + height * rowLength;
+        directoryOffset += directoryOffset % 2;
+        int countSize = bigTiff ? 8 : 2;
+        int entrySize = bigTiff ? 20 : 12;
+        int nextDirectorySize = bigTiff ? 8 : 4;
+        long valuesOffset = directoryOffset + countSize + NUMBER_OF_TAGS * entrySize + nextDirectorySize;
+
+        ByteBuffer directory = ByteBuffer.allocate(countSize + NUMBER_OF_TAGS * entrySize + nextDirectorySize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer values = ByteBuffer.allocate(strips * 16 + 16).order(ByteOrder.LITTLE_ENDIAN);
+        if (bigTiff) {
+            directory.putLong(NUMBER_OF_TAGS);
+        } else {
+            directory.putShort((short) NUMBER_OF_TAGS);
+        }
+        valuesOffset = putEntry(directory, values, valuesOffset, IMAGE_WIDTH, TYPE_LONG, width);
+        valuesOffset = putEntry(directory, values, valuesOffset, IMAGE_LENGTH, TYPE_LONG, height);
+        valuesOffset = putEntry(directory, values, valuesOffset, BITS_PER_SAMPLE, TYPE_SHORT, bitsPerSample);
+        valuesOffset = putEntry(directory, values, valuesOffset, COMPRESSION, TYPE_SHORT, 1);
+        valuesOffset = putEntry(directory, values, valuesOffset, PHOTOMETRIC_INTERPRETATION, TYPE_SHORT,
+                samplesPerPixel == 1 ? PHOTOMETRIC_BLACK_IS_ZERO : PHOTOMETRIC_RGB);
+        valuesOffset = putEntry(directory, values, valuesOffset, STRIP_OFFSETS, offsetType, stripOffsets);
+        valuesOffset = putEntry(directory, values, valuesOffset, SAMPLES_PER_PIXEL, TYPE_SHORT, samplesPerPixel);
+        valuesOffset = putEntry(directory, values, valuesOffset, ROWS_PER_STRIP, TYPE_LONG, rowsPerStrip);
+        valuesOffset = putEntry(directory, values, valuesOffset, STRIP_BYTE_COUNTS, offsetType, stripByteCounts);
+        putEntry(directory, values, valuesOffset, PLANAR_CONFIGURATION, TYPE_SHORT, 1);
+        // No next directory, the offset is left at 0
+
+        directory.clear();
+        values.flip();
+        writeFully(directory, directoryOffset);
+        writeFully(values, directoryOffset + directory.capacity());
+
+        ByteBuffer header = ByteBuffer.allocate((int) headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I');
+        if (bigTiff) {
+            header.putShort((short) BIG_TIFF).putShort((short) 8).putShort((short) 0).putLong(directoryOffset);
+        } else {
+            header.putShort((short) CLASSIC_TIFF).putInt((int) directoryOffset);
+        }
+        header.flip();
+        writeFully(header, 0);
+    }
+
+    /**
+     * Add an entry to the directory. Values that do not fit in the entry itself are added to the values that follow
+     * the directory.
+     *
+     * @return the offset in the file of the next value that does not fit in its entry
+     */
+    private long putEntry(ByteBuffer directory, ByteBuffer values, long valuesOffset, int tag, int type,
+                          long... entryValues) {
+        int typeSize = type == TYPE_SHORT ? 2 : type == TYPE_LONG ? 4 : 8;
+        int inlineSize = bigTiff ? 8 : 4;
+        directory.putShort((short) tag);
+        directory.putShort((short) type);
+        if (bigTiff) {
+            directory.putLong(entryValues.length);
+        } else {
+            directory.putInt(entryValues.length);
+        }
+        int size = entryValues.length * typeSize;
+        ByteBuffer target;
+        int inlineStart = directory.position();
+        if (size <= inlineSize) {
+            target = directory;
+        } else {
+            if (bigTiff) {
+                directory.putLong(valuesOffset);
+            } else {
+                directory.putInt((int) valuesOffset);
+            }
+            target = values;
+        }
+        for (long value : entryValues) {
+            if (type == TYPE_SHORT) {
+                target.putShort((short) value);
+            } else if (type == TYPE_LONG) {
+                target.putInt((int) value);
+            } else {
+                target.putLong(value);
+            }
+        }
+        if (target == directory) {
+            directory.position(inlineStart + inlineSize);
+            return valuesOffset;
+        }
+        return valuesOffset + size;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
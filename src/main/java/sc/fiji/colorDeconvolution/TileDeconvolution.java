@@ -0,0 +1,231 @@
+package sc.fiji.colorDeconvolution;
+
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.STAIN1;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.STAIN2;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.STAIN3;
+import static sc.fiji.colorDeconvolution.StainMatrixIJ2.convertAbsorptionToIntensity;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.ColorChannelOrder;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Deconvolves an image tile by tile on a caller supplied executor, and hands each finished tile to a consumer, for
+ * example one that writes it to disk. The consumer is called for one tile at a time, in row major order, while the next
+ * tiles are being deconvolved, so writing tile N overlaps with computing tile N+1.
+ * <p>
+ * At most a fixed number of tiles are in flight: deconvolved, or waiting for or being handed to the consumer. A slow
+ * consumer therefore holds back the deconvolution instead of filling up the memory. Any executor can be used, such as
+ * a fixed thread pool or, on newer JDKs, an executor starting a virtual thread per task.
+ */
+public class TileDeconvolution {
+
+    public static final long DEFAULT_TILE_SIZE = 1024;
+    public static final int DEFAULT_TILES_IN_FLIGHT = 4;
+
+    private final StainMatrixIJ2 stainMatrix;
+    private final long tileWidth;
+    private final long tileHeight;
+    private final int tilesInFlight;
+
+    /**
+     * A deconvolved tile of the image.
+     */
+    public static class Tile {
+
+        private final Interval interval;
+        private final ImgPlus<UnsignedByteType>[] stainImages;
+
+        Tile(Interval interval, ImgPlus<UnsignedByteType>[] stainImages) {
+            this.interval = interval;
+            this.stainImages = stainImages;
+        }
+
+        /**
+         * @return the position of the tile in the image, with the image starting at 0
+         */
+        public Interval getInterval() {
+            return interval;
+        }
+
+        /**
+         * @return the three 8-bit images of the tile, starting at 0
+         */
+        public ImgPlus<UnsignedByteType>[] getStainImages() {
+            return stainImages;
+        }
+    }
+
+    /**
+     * @param stainMatrix   the stain matrix to deconvolve with
+     * @param tileWidth     the width of a tile
+     * @param tileHeight    the height of a tile
+     * @param tilesInFlight the maximum number of tiles that are deconvolved but not yet consumed
+     */
+    public TileDeconvolution(StainMatrixIJ2 stainMatrix, long tileWidth, long tileHeight, int tilesInFlight) {
+        if (tilesInFlight < 1) {
+            throw new IllegalArgumentException("At least one tile should be in flight, but got " + tilesInFlight);
+        }
+        this.stainMatrix = stainMatrix;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.tilesInFlight = tilesInFlight;
+    }
+
+    /**
+     * Deconvolve the image tile by tile and hand every tile to the consumer.
+     *
+     * @param imp      : The ImagePlus that will be deconvolved. RGB only.
+     * @param executor the executor to deconvolve the tiles and call the consumer on
+     * @param consumer receives the tiles one at a time, in row major order
+     * @return a future that completes when all tiles have been consumed. It completes exceptionally when deconvolving
+     * or consuming a tile fails. Cancelling it stops deconvolving new tiles.
+     */
+    public CompletableFuture<Void> compute(ImgPlus<UnsignedByteType> imp, Executor executor, Consumer<Tile> consumer) {
+        double[] q = stainMatrix.initComputation(true);
+        double[][] normOD = stainMatrix.getNormalizedOpticalDensities();
+        RandomAccessibleInterval<ARGBType> mergeARGB = Views.zeroMin(Converters.mergeARGB(imp.getImg(), ColorChannelOrder.RGB));
+        List<Interval> tiles = Tiling.tiles(mergeARGB, tileWidth, tileHeight);
+        if (tiles.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        ImgFactory<UnsignedByteType> factory = imp.getImg().factory();
+        Run run = new Run(mergeARGB, tiles, q, normOD, factory, executor, consumer);
+        for (int tile = 0; tile < tilesInFlight; tile++) {
+            run.submitNext();
+        }
+        return run.result;
+    }
+
+    /**
+     * The state of one call to {@link #compute(ImgPlus, Executor, Consumer)}. Instead of blocking a thread until there
+     * is room for another tile, the next tile is submitted whenever a tile has been consumed, so even a single thread
+     * executor cannot deadlock.
+     * <p>
+     * An executor that runs tasks on the calling thread completes a tile while it is being submitted, which asks for the
+     * next tile before the submission returns. Such requests are counted and submitted by the loop that is already
+     * running, instead of recursively, so the stack does not grow with the number of tiles.
+     */
+    private static class Run {
+
+        private final RandomAccessibleInterval<ARGBType> image;
+        private final List<Interval> tiles;
+        private final double[] q;
+        private final double[][] normOD;
+        private final ImgFactory<UnsignedByteType> factory;
+        private final Executor executor;
+        private final Consumer<Tile> consumer;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        private int nextTile;
+        private CompletableFuture<Void> consumed = CompletableFuture.completedFuture(null);
+        private int requested;
+        private boolean submitting;
+
+        Run(RandomAccessibleInterval<ARGBType> image, List<Interval> tiles, double[] q, double[][] normOD,
+            ImgFactory<UnsignedByteType> factory, Executor executor, Consumer<Tile> consumer) {
+            this.image = image;
+            this.tiles = tiles;
+            this.q = q;
+            this.normOD = normOD;
+            this.factory = factory;
+            this.executor = executor;
+            this.consumer = consumer;
+        }
+
+        void submitNext() {
+            synchronized (this) {
+                requested++;
+                if (submitting) {
+                    return;
+                }
+                submitting = true;
+            }
+            while (true) {
+                Interval tile;
+                boolean last;
+                synchronized (this) {
+                    if (requested == 0 || nextTile >= tiles.size() || result.isDone()) {
+                        submitting = false;
+                        return;
+                    }
+                    requested--;
+                    tile = tiles.get(nextTile++);
+                    last = nextTile == tiles.size();
+                }
+                try {
+                    submit(tile, last);
+                } catch (RuntimeException e) {
+                    // Such as a RejectedExecutionException of an executor that was shut down
+                    result.completeExceptionally(e);
+                }
+            }
+        }
+
+        private void submit(Interval tile, boolean last) {
+            CompletableFuture<Tile> deconvolved = CompletableFuture.supplyAsync(
+                    () -> deconvolve(image, tile, q, normOD, factory), executor);
+            CompletableFuture<Void> next;
+            synchronized (this) {
+                // Chain the consumer calls, so they are made one at a time and in order
+                next = consumed.thenCombineAsync(deconvolved, (previous, finished) -> {
+                    consumer.accept(finished);
+                    return (Void) null;
+                }, executor);
+                consumed = next;
+            }
+            next.whenComplete((ignored, failure) -> {
+                if (failure != null) {
+                    result.completeExceptionally(failure);
+                } else if (last) {
+                    result.complete(null);
+                } else {
+                    submitNext();
+                }
+            });
+        }
+    }
+
+    private static Tile deconvolve(RandomAccessibleInterval<ARGBType> image, Interval tile, double[] q, double[][] normOD,
+                                   ImgFactory<UnsignedByteType> factory) {
+        long[] dimensions = Intervals.dimensionsAsLongArray(tile);
+        Img<UnsignedByteType> outputImg1 = factory.create(dimensions);
+        Img<UnsignedByteType> outputImg2 = factory.create(dimensions);
+        Img<UnsignedByteType> outputImg3 = factory.create(dimensions);
+
+        Cursor<ARGBType> input = Views.flatIterable(Views.interval(image, tile)).cursor();
+        Cursor<UnsignedByteType> out1 = Views.flatIterable(outputImg1).cursor();
+        Cursor<UnsignedByteType> out2 = Views.flatIterable(outputImg2).cursor();
+        Cursor<UnsignedByteType> out3 = Views.flatIterable(outputImg3).cursor();
+        double[] stains = new double[3];
+        while (input.hasNext()) {
+            StainMatrixIJ2.deconvolvePixel(input.next().get(), q, stains);
+            out1.next().set(convertAbsorptionToIntensity(stains[STAIN1]));
+            out2.next().set(convertAbsorptionToIntensity(stains[STAIN2]));
+            out3.next().set(convertAbsorptionToIntensity(stains[STAIN3]));
+        }
+
+        @SuppressWarnings("unchecked")
+        ImgPlus<UnsignedByteType>[] outputImages = new ImgPlus[3];
+        outputImages[0] = new ImgPlus<>(outputImg1);
+        outputImages[1] = new ImgPlus<>(outputImg2);
+        outputImages[2] = new ImgPlus<>(outputImg3);
+        StainMatrixIJ2.initializeColorTables(outputImages, normOD);
+        return new Tile(tile, outputImages);
+    }
+}
@@ -0,0 +1,68 @@
+package sc.fiji.colorDeconvolution;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+
+/**
+ * Splits an image into tiles, so large images can be processed tile by tile. Tiles are cut in the first two dimensions
+ * (x and y); any further dimensions are kept whole. Chunks are cut along the last dimension only.
+ */
+final class Tiling {
+
+    private Tiling() {
+    }
+
+    /**
+     * Split an interval into tiles, in row major order. Tiles on the right and bottom edge may be smaller.
+     *
+     * @param interval   the interval to split
+     * @param tileWidth  the width of a tile
+     * @param tileHeight the height of a tile
+     * @return the tiles covering the interval
+     */
+    static List<Interval> tiles(Interval interval, long tileWidth, long tileHeight) {
+        List<Interval> tiles = new ArrayList<>();
+        long[] min = new long[interval.numDimensions()];
+        long[] max = new long[interval.numDimensions()];
+        interval.min(min);
+        interval.max(max);
+        for (long y = interval.min(1); y <= interval.max(1); y += tileHeight) {
+            for (long x = interval.min(0); x <= interval.max(0); x += tileWidth) {
+                min[0] = x;
+                min[1] = y;
+                max[0] = Math.min(x + tileWidth - 1, interval.max(0));
+                max[1] = Math.min(y + tileHeight - 1, interval.max(1));
+                tiles.add(new FinalInterval(min, max));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Split an image along its last axis into chunks that can each be processed on their own, for example in parallel.
+     *
+     * @param dimensions    the dimensions of the image, which starts at 0
+     * @param multiThreaded whether to make enough chunks to keep all processors busy, or a single chunk
+     * @return the chunks covering the image, in order
+     */
+    static List<Interval> chunks(long[] dimensions, boolean multiThreaded) {
+        int splitAxis = dimensions.length - 1;
+        long length = dimensions[splitAxis];
+        int chunks = multiThreaded ? (int) Math.min(length, Runtime.getRuntime().availableProcessors() * 4L) : 1;
+        List<Interval> intervals = new ArrayList<>(chunks);
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            long[] min = new long[dimensions.length];
+            long[] max = new long[dimensions.length];
+            for (int d = 0; d < dimensions.length; d++) {
+                max[d] = dimensions[d] - 1;
+            }
+            min[splitAxis] = length * chunk / chunks;
+            max[splitAxis] = length * (chunk + 1) / chunks - 1;
+            intervals.add(new FinalInterval(min, max));
+        }
+        return intervals;
+    }
+}
@@ -0,0 +1,99 @@
+package sc.fiji.colorDeconvolution;
+
+import static org.junit.Assert.assertEquals;
+import static sc.fiji.colorDeconvolution.TestImages.hematoxylinEosinDab;
+import static sc.fiji.colorDeconvolution.TestImages.randomImage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+public class DeconvolutionPipelineTest {
+
+    @Test
+    public void testMedianRemovesSpeckle() {
+        int width = 5;
+        int height = 4;
+        float[] source = new float[width * height];
+        source[2 * width + 2] = 255;
+        float[] target = new float[width * height];
+
+        DeconvolutionPipeline.median(source, target, width, height, 1);
+
+        for (float value : target) {
+            assertEquals(0f, value, 0f);
+        }
+    }
+
+    @Test
+    public void testGaussianKernelSumsToOne() {
+        float[] kernel = DeconvolutionPipeline.gaussianKernel(1.5);
+        assertEquals(11, kernel.length);
+        float sum = 0;
+        for (float value : kernel) {
+            sum += value;
+        }
+        assertEquals(1f, sum, 1e-6f);
+    }
+
+    @Test
+    public void testWithoutFiltersMatchesCompute() {
+        ImgPlus<UnsignedByteType> imp = randomImage(70, 50);
+        StainMatrixIJ2 stainMatrix = hematoxylinEosinDab();
+
+        List<ImgPlus<UnsignedByteType>> outputs = new DeconvolutionPipeline(stainMatrix, StainMatrixIJ2.STAIN3, 32)
+                .output().run(imp);
+
+        assertSameImage(stainMatrix.compute(imp)[StainMatrixIJ2.STAIN3], outputs.get(0));
+    }
+
+    @Test
+    public void testTilesDoNotShowInTheOutput() {
+        ImgPlus<UnsignedByteType> imp = randomImage(150, 100);
+        StainMatrixIJ2 stainMatrix = hematoxylinEosinDab();
+
+        List<ImgPlus<UnsignedByteType>> tiled = pipeline(stainMatrix, 32).run(imp);
+        List<ImgPlus<UnsignedByteType>> whole = pipeline(stainMatrix, 1024).run(imp);
+
+        assertEquals(2, tiled.size());
+        assertSameImage(whole.get(0), tiled.get(0));
+        assertSameImage(whole.get(1), tiled.get(1));
+    }
+
+    @Test
+    public void testOutputsAreCreatedByTheFactory() {
+        ImgPlus<UnsignedByteType> imp = randomImage(70, 50);
+        StainMatrixIJ2 stainMatrix = hematoxylinEosinDab();
+        List<Integer> created = new ArrayList<>();
+
+        List<ImgPlus<UnsignedByteType>> outputs = pipeline(stainMatrix, 32).run(imp, (output, dimensions) -> {
+            created.add(output);
+            return StainImgFactory.direct().create(output, dimensions);
+        });
+
+        assertEquals(Arrays.asList(0, 1), created);
+        List<ImgPlus<UnsignedByteType>> expected = pipeline(stainMatrix, 32).run(imp);
+        assertSameImage(expected.get(0), outputs.get(0));
+        assertSameImage(expected.get(1), outputs.get(1));
+    }
+
+    private static DeconvolutionPipeline pipeline(StainMatrixIJ2 stainMatrix, int tileSize) {
+        return new DeconvolutionPipeline(stainMatrix, StainMatrixIJ2.STAIN3, tileSize)
+                .gaussian(1.5).output()
+                .threshold(0, 200).median(1).output();
+    }
+
+    private static void assertSameImage(ImgPlus<UnsignedByteType> expected, ImgPlus<UnsignedByteType> actual) {
+        Cursor<UnsignedByteType> expectedCursor = Views.flatIterable(expected).cursor();
+        for (UnsignedByteType pixel : Views.flatIterable(actual)) {
+            assertEquals(expectedCursor.next().get(), pixel.get());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package sc.fiji.colorDeconvolution;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static sc.fiji.colorDeconvolution.TestImages.hematoxylinEosinDab;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+public class DeconvolutionPreviewTest {
+
+    @Test
+    public void testPreviewRefinesToFullResolution() throws Exception {
+        ArrayImg<UnsignedByteType, ByteArray> image = ArrayImgs.unsignedBytes(1024, 768, 3);
+        Random random = new Random(17);
+        for (UnsignedByteType pixel : image) {
+            pixel.set(random.nextInt(256));
+        }
+        ImgPlus<UnsignedByteType> imp = new ImgPlus<>(image);
+        StainMatrixIJ2 stainMatrix = hematoxylinEosinDab();
+        List<Integer> levels = Collections.synchronizedList(new ArrayList<>());
+        List<ImgPlus<UnsignedByteType>[]> results = Collections.synchronizedList(new ArrayList<>());
+
+        try (DeconvolutionPreview preview = new DeconvolutionPreview(1)) {
+            Future<?> future = preview.start(imp, stainMatrix, (stainImages, level, fullResolution) -> {
+                levels.add(level);
+                results.add(stainImages);
+                assertEquals(level == 0, fullResolution);
+            });
+            future.get(1, TimeUnit.MINUTES);
+        }
+
+        // With a budget of a millisecond the preview starts at a coarse level and goes down one level at a time
+        assertTrue("Expected several levels but got " + levels, levels.size() > 1);
+        for (int i = 1; i < levels.size(); i++) {
+            assertEquals(levels.get(i - 1) - 1, (int) levels.get(i));
+        }
+        assertEquals(0, (int) levels.get(levels.size() - 1));
+        ImgPlus<UnsignedByteType>[] expected = stainMatrix.compute(imp);
+        ImgPlus<UnsignedByteType>[] fullResolution = results.get(results.size() - 1);
+        for (int stain = 0; stain < 3; stain++) {
+            Cursor<UnsignedByteType> expectedCursor = Views.flatIterable(expected[stain]).cursor();
+            for (UnsignedByteType pixel : Views.flatIterable(fullResolution[stain])) {
+                assertEquals(expectedCursor.next().get(), pixel.get());
+            }
+        }
+    }
+
+    @Test
+    public void testStartingAgainCancelsThePreviousPreview() throws Exception {
+        ImgPlus<UnsignedByteType> imp = new ImgPlus<>(ArrayImgs.unsignedBytes(2048, 2048, 3));
+        List<Boolean> fullResolutions = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean secondStarted = new AtomicBoolean();
+        List<Integer> lateLevels = Collections.synchronizedList(new ArrayList<>());
+
+        try (DeconvolutionPreview preview = new DeconvolutionPreview(1)) {
+            preview.start(imp, hematoxylinEosinDab(), (stainImages, level, fullResolution) -> {
+                if (secondStarted.get()) {
+                    lateLevels.add(level);
+                }
+                fullResolutions.add(fullResolution);
+            });
+            Future<?> second = preview.start(imp, hematoxylinEosinDab(), (stainImages, level, fullResolution) -> {
+            });
+            secondStarted.set(true);
+            second.get(1, TimeUnit.MINUTES);
+        }
+
+        assertEquals("Levels of the cancelled preview arrived after the next one started", Collections.emptyList(), lateLevels);
+        assertTrue("The cancelled preview should not reach full resolution", !fullResolutions.contains(true));
+    }
+
+    @Test
+    public void testFailureIsReportedToTheListener() throws Exception {
+        ImgPlus<UnsignedByteType> imp = new ImgPlus<>(ArrayImgs.unsignedBytes(64, 64, 3));
+        List<RuntimeException> failures = Collections.synchronizedList(new ArrayList<>());
+
+        try (DeconvolutionPreview preview = new DeconvolutionPreview(1)) {
+            Future<?> future = preview.start(imp, () -> {
+                throw new IllegalArgumentException("Not enough tissue");
+            }, new DeconvolutionPreview.Listener() {
+                @Override
+                public void levelComputed(ImgPlus<UnsignedByteType>[] stainImages, int level, boolean fullResolution) {
+                    fail("No level should be computed without a stain matrix");
+                }
+
+                @Override
+                public void previewFailed(RuntimeException failure) {
+                    failures.add(failure);
+                }
+            });
+            future.get(1, TimeUnit.MINUTES);
+            fail("Expected the preview to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+
+        assertEquals(1, failures.size());
+        assertEquals("Not enough tissue", failures.get(0).getMessage());
+    }
+
+    @Test
+    public void testStainMatrixIsCreatedInTheBackground() throws Exception {
+        ImgPlus<UnsignedByteType> imp = new ImgPlus<>(ArrayImgs.unsignedBytes(64, 64, 3));
+        List<Thread> creators = Collections.synchronizedList(new ArrayList<>());
+
+        try (DeconvolutionPreview preview = new DeconvolutionPreview(1)) {
+            preview.start(imp, () -> {
+                creators.add(Thread.currentThread());
+                return hematoxylinEosinDab();
+            }, (stainImages, level, fullResolution) -> {
+            }).get(1, TimeUnit.MINUTES);
+        }
+
+        assertEquals(1, creators.size());
+        assertNotEquals(Thread.currentThread(), creators.get(0));
+    }
+}
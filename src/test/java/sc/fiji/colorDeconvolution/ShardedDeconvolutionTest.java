@@ -0,0 +1,167 @@
+package sc.fiji.colorDeconvolution;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+public class ShardedDeconvolutionTest {
+
+    private static final String STAIN = "test stain,0.66645944,0.6332006,0.39355922,0.25378,0.737415,0.6259511,0,0,0";
+    private static final Path INPUT = Paths.get("src/test/resources/small2ColorImage.tif");
+
+    @Test
+    public void testWorkerProcessesTogetherDoAllTiles() throws Exception {
+        Path directory = Files.createDirectories(Paths.get("target")).resolve("sharded-" + System.nanoTime());
+        // A worker that crashed left a lease behind, which has expired long ago
+        Files.createDirectories(directory.resolve("leases"));
+        Path staleLease = Files.createFile(directory.resolve("leases").resolve("tile-0-0.lease"));
+        Files.setLastModifiedTime(staleLease, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)));
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> workers = new ArrayList<>();
+        for (int worker = 0; worker < 3; worker++) {
+            workers.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    ShardedDeconvolution.class.getName(), INPUT.toString(), directory.toString(), STAIN, "1", "60000")
+                    .redirectErrorStream(true)
+                    .redirectOutput(directory.resolve("worker" + worker + ".log").toFile())
+                    .start());
+        }
+        int total = 0;
+        for (int worker = 0; worker < workers.size(); worker++) {
+            assertTrue("Worker did not finish in time", workers.get(worker).waitFor(2, TimeUnit.MINUTES));
+            assertEquals(0, workers.get(worker).exitValue());
+            // The last line a worker prints is the number of tiles it deconvolved
+            List<String> lines = Files.readAllLines(directory.resolve("worker" + worker + ".log"));
+            total += Integer.parseInt(lines.get(lines.size() - 1).trim());
+        }
+        // Every tile is done at least once. A tile may be done twice, see the class documentation, which only matters
+        // when the output differs.
+        assertTrue("Only " + total + " of " + tileCount(1) + " tiles were done", total >= tileCount(1));
+
+        Path[] outputs = {directory.resolve("stain1.tif"), directory.resolve("stain2.tif"), directory.resolve("stain3.tif")};
+        StainMatrixIJ2 stainMatrix = new StainMatrixIJ2();
+        stainMatrix.init(STAIN);
+        new ShardedDeconvolution(stainMatrix, directory, 1, 60000).assemble(outputs[0], outputs[1], outputs[2]);
+        for (int stain = 0; stain < 3; stain++) {
+            byte[] expected = readPixels(Paths.get("src/test/resources/expectedSmallDeconvoluted" + (stain + 1) + ".tif"));
+            assertArrayEquals(expected, readPixels(outputs[stain]));
+        }
+    }
+
+    @Test
+    public void testExpiredLeaseIsTakenOver() throws Exception {
+        Path directory = Files.createDirectories(Paths.get("target")).resolve("sharded-" + System.nanoTime());
+        Files.createDirectories(directory.resolve("leases"));
+        long start = System.currentTimeMillis();
+        Files.createFile(directory.resolve("leases").resolve("tile-0-0.lease"));
+        StainMatrixIJ2 stainMatrix = new StainMatrixIJ2();
+        stainMatrix.init(STAIN);
+        ShardedDeconvolution sharded = new ShardedDeconvolution(stainMatrix, directory, 16, 200);
+
+        // Another worker holds tile 0-0, so this worker waits until the lease expires and then does it as well
+        int tiles = sharded.work(INPUT);
+
+        assertEquals(tileCount(16), tiles);
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        assertTrue(Files.exists(directory.resolve("chunks").resolve("tile-0-0.raw")));
+    }
+
+    @Test
+    public void testLiveLeaseIsNotTakenOver() throws Exception {
+        Path directory = Files.createDirectories(Paths.get("target")).resolve("sharded-" + System.nanoTime());
+        Path chunks = directory.resolve("chunks");
+        Files.createDirectories(directory.resolve("leases"));
+        Path lease = Files.write(directory.resolve("leases").resolve("tile-0-0.lease"), "other worker".getBytes(StandardCharsets.UTF_8));
+        StainMatrixIJ2 stainMatrix = new StainMatrixIJ2();
+        stainMatrix.init(STAIN);
+        ShardedDeconvolution sharded = new ShardedDeconvolution(stainMatrix, directory, 16, 60000);
+        int tileCount = tileCount(16);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> worker = executor.submit(() -> sharded.work(INPUT));
+            long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+            while (!Files.isDirectory(chunks) || chunkCount(chunks) < tileCount - 1) {
+                assertTrue("The other tiles were not done in time", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+
+            // The worker does all other tiles and then waits for the other worker
+            assertFalse(worker.isDone());
+            assertFalse(Files.exists(chunks.resolve("tile-0-0.raw")));
+            assertEquals("other worker", new String(Files.readAllBytes(lease), StandardCharsets.UTF_8));
+
+            // The other worker finishes its tile
+            Files.write(chunks.resolve("tile-0-0.raw"), new byte[16 * 16 * 3]);
+            Files.delete(lease);
+            assertEquals(tileCount - 1, (int) worker.get(1, TimeUnit.MINUTES));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDirectoryOfAnotherImageOrTileSizeIsRejected() throws Exception {
+        Path directory = Files.createDirectories(Paths.get("target")).resolve("sharded-" + System.nanoTime());
+        StainMatrixIJ2 stainMatrix = new StainMatrixIJ2();
+        stainMatrix.init(STAIN);
+        new ShardedDeconvolution(stainMatrix, directory, 16, 60000).work(INPUT);
+
+        assertRejected(new ShardedDeconvolution(stainMatrix, directory, 8, 60000), INPUT);
+        StainMatrixIJ2 otherStainMatrix = new StainMatrixIJ2();
+        otherStainMatrix.init(STAIN.replace("0.66645944", "0.7"));
+        assertRejected(new ShardedDeconvolution(otherStainMatrix, directory, 16, 60000), INPUT);
+        Path otherInput = Files.copy(INPUT, directory.resolve("other.tif"));
+        assertRejected(new ShardedDeconvolution(stainMatrix, directory, 16, 60000), otherInput);
+    }
+
+    private static void assertRejected(ShardedDeconvolution sharded, Path input) {
+        try {
+            sharded.work(input);
+            fail("Expected the manifest not to match");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("is used for another"));
+        }
+    }
+
+    private static int tileCount(int tileSize) throws IOException {
+        try (TiffStripReader reader = new TiffStripReader(INPUT)) {
+            int columns = (reader.getWidth() + tileSize - 1) / tileSize;
+            int rows = (reader.getHeight() + tileSize - 1) / tileSize;
+            return columns * rows;
+        }
+    }
+
+    private static long chunkCount(Path chunks) throws IOException {
+        try (Stream<Path> files = Files.list(chunks)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".raw")).count();
+        }
+    }
+
+    private static byte[] readPixels(Path file) throws IOException {
+        try (TiffStripReader reader = new TiffStripReader(file)) {
+            byte[] pixels = new byte[reader.getWidth() * reader.getHeight() * reader.getSamplesPerPixel()];
+            reader.readRows(0, reader.getHeight(), pixels);
+            return pixels;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package sc.fiji.colorDeconvolution;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static sc.fiji.colorDeconvolution.TestImages.normalized;
+import static sc.fiji.colorDeconvolution.TestImages.stainMatrix;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+public class SpatialStainMatrixTest {
+
+    @Test
+    public void testInverseIsInterpolatedBetweenCellCenters() {
+        StainMatrixIJ2 left = stainMatrix(StainParameters.H_E_DAB);
+        StainMatrixIJ2 right = stainMatrix(StainParameters.H_DAB);
+        SpatialStainMatrix spatial = new SpatialStainMatrix(100, 100, new StainMatrixIJ2[][]{{left, right}});
+        double[] leftQ = left.initComputation(false);
+        double[] rightQ = right.initComputation(false);
+
+        assertArrayEquals(leftQ, spatial.inverseAt(0, 0), 1e-12);
+        assertArrayEquals(leftQ, spatial.inverseAt(49, 80), 1e-12);
+        assertArrayEquals(rightQ, spatial.inverseAt(150, 20), 1e-12);
+        assertArrayEquals(rightQ, spatial.inverseAt(199, 99), 1e-12);
+        double[] middle = spatial.inverseAt(100, 10);
+        for (int i = 0; i < 9; i++) {
+            assertEquals((leftQ[i] * 49.5 + rightQ[i] * 50.5) / 100, middle[i], 1e-12);
+        }
+    }
+
+    @Test
+    public void testUniformCellsMatchGlobalMatrix() {
+        ArrayImg<UnsignedByteType, ByteArray> image = ArrayImgs.unsignedBytes(90, 70, 3);
+        Random random = new Random(13);
+        for (UnsignedByteType pixel : image) {
+            pixel.set(random.nextInt(256));
+        }
+        ImgPlus<UnsignedByteType> imp = new ImgPlus<>(image);
+        StainMatrixIJ2 global = stainMatrix(StainParameters.H_E_DAB);
+        StainMatrixIJ2[][] cells = new StainMatrixIJ2[3][4];
+        for (StainMatrixIJ2[] row : cells) {
+            for (int column = 0; column < row.length; column++) {
+                row[column] = stainMatrix(StainParameters.H_E_DAB);
+            }
+        }
+
+        ImgPlus<UnsignedByteType>[] expected = global.compute(imp);
+        ImgPlus<UnsignedByteType>[] actual = new SpatialStainMatrix(25, 25, cells).compute(imp);
+
+        for (int stain = 0; stain < 3; stain++) {
+            Cursor<UnsignedByteType> expectedCursor = Views.flatIterable(expected[stain]).cursor();
+            for (UnsignedByteType pixel : Views.flatIterable(actual[stain])) {
+                assertEquals(expectedCursor.next().get(), pixel.get(), 1);
+            }
+        }
+    }
+
+    @Test
+    public void testEstimatePerCell() {
+        double[] haematoxylin = StainParameters.Constants.HAEM_MATRIX;
+        double[] otherDab = {0.35, 0.65, 0.67};
+        int cellSize = 64;
+        ArrayImg<UnsignedByteType, ByteArray> image = ArrayImgs.unsignedBytes(3 * cellSize, cellSize, 3);
+        Random random = new Random(5);
+        // A cell with a DAB that differs from the reference, a cell with the stains of the reference and a cell with
+        // only haematoxylin, from which no two stains can be estimated
+        paint(image, 0, cellSize, haematoxylin, otherDab, random);
+        paint(image, cellSize, cellSize, haematoxylin, StainParameters.Constants.DAB_MATRIX, random);
+        paint(image, 2 * cellSize, cellSize, haematoxylin, null, random);
+        StainMatrixIJ2 reference = stainMatrix(StainParameters.H_DAB);
+        double[] referenceQ = reference.initComputation(false);
+        StainMatrixIJ2 other = new StainMatrixIJ2();
+        other.init("Other DAB", haematoxylin[0], haematoxylin[1], haematoxylin[2], otherDab[0], otherDab[1], otherDab[2], 0, 0, 0);
+        double[] otherQ = other.initComputation(false);
+
+        SpatialStainMatrix spatial = SpatialStainMatrix.estimate(new ImgPlus<>(image), cellSize,
+                new StainVectorEstimator(cellSize, 1024, 100000, 1), reference);
+
+        double[] estimatedQ = spatial.inverseAt(0, 0);
+        assertTrue("The first cell should have its own stains", distance(estimatedQ, otherQ) < distance(estimatedQ, referenceQ));
+        assertArrayEquals(referenceQ, spatial.inverseAt(3 * cellSize - 1, 0), 0);
+    }
+
+    /**
+     * Fill a cell with random tissue pixels: a third only the first stain, a third only the second stain and a third a
+     * mix of both. Without a second stain, all pixels only have the first stain.
+     */
+    private static void paint(ArrayImg<UnsignedByteType, ByteArray> image, int x, int size, double[] stain1,
+                              double[] stain2, Random random) {
+        double[] vector1 = normalized(stain1);
+        double[] vector2 = stain2 == null ? new double[3] : normalized(stain2);
+        RandomAccess<UnsignedByteType> access = image.randomAccess();
+        for (int y = 0; y < image.dimension(1); y++) {
+            for (int column = x; column < x + size; column++) {
+                double amount1 = 40 + random.nextDouble() * 80;
+                double amount2 = 40 + random.nextDouble() * 80;
+                int kind = random.nextInt(3);
+                if (kind == 0) {
+                    amount2 = 0;
+                } else if (kind == 1 && stain2 != null) {
+                    amount1 = 0;
+                }
+                access.setPosition(column, 0);
+                access.setPosition(y, 1);
+                for (int channel = 0; channel < 3; channel++) {
+                    double absorption = amount1 * vector1[channel] + amount2 * vector2[channel];
+                    double intensity = Math.exp(-absorption * StainMatrixIJ2.LOG_255 / 255.0) * 255.0 - 1;
+                    access.setPosition(channel, 2);
+                    access.get().set((int) Math.max(0, Math.min(255, Math.round(intensity))));
+                }
+            }
+        }
+    }
+
+    private static double distance(double[] first, double[] second) {
+        double sum = 0;
+        for (int i = 0; i < first.length; i++) {
+            sum += (first[i] - second[i]) * (first[i] - second[i]);
+        }
+        return sum;
+    }
+}
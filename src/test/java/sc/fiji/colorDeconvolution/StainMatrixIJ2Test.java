@@ -2,10 +2,14 @@ package sc.fiji.colorDeconvolution;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static sc.fiji.colorDeconvolution.TestImages.hematoxylinEosinDab;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -16,7 +20,18 @@ import net.imagej.Dataset;
 import net.imagej.DefaultDataset;
 import net.imagej.ImageJ;
 import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.converter.ColorChannelOrder;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
 
 public class StainMatrixIJ2Test {
 
@@ -97,6 +112,75 @@ public class StainMatrixIJ2Test {
         assertArrayEquals(new byte[30 * 30], (byte[]) expected3.getImageStack().getPixels(1));
     }
 
+    @Test
+    public void testDirectOutputMatchesHeapOutput() throws IOException {
+        ImageJ ij = new ImageJ();
+        Dataset dataset = ij.scifio().datasetIO().open("src/test/resources/small2ColorImage.tif");
+        @SuppressWarnings("unchecked")
+        ImgPlus<UnsignedByteType> imagePlus = (ImgPlus<UnsignedByteType>) dataset.getImgPlus();
+        StainMatrixIJ2 stainMatrix = new StainMatrixIJ2();
+        stainMatrix.init("test stain", 0.66645944, 0.6332006, 0.39355922, 0.25378, 0.737415, 0.6259511, 0, 0, 0);
+
+        ImgPlus<UnsignedByteType>[] onHeap = stainMatrix.compute(imagePlus);
+        ImgPlus<UnsignedByteType>[] offHeap = stainMatrix.compute(imagePlus, StainImgFactory.direct());
+
+        for (int stain = 0; stain < 3; stain++) {
+            ByteBuffer buffer = DirectByteAccess.bufferOf(offHeap[stain].getImg());
+            assertTrue("Output should be stored outside of the heap", buffer.isDirect());
+            byte[] expected = new byte[30 * 30];
+            int i = 0;
+            for (UnsignedByteType pixel : Views.flatIterable(onHeap[stain].getImg())) {
+                expected[i++] = pixel.getByte();
+            }
+            byte[] actual = new byte[buffer.remaining()];
+            buffer.get(actual);
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testReconstructionOfAllStainsMatchesInput() {
+        ArrayImg<UnsignedByteType, ByteArray> image = ArrayImgs.unsignedBytes(32, 24, 3);
+        Random random = new Random(1);
+        for (UnsignedByteType pixel : image) {
+            pixel.set(random.nextInt(256));
+        }
+        ImgPlus<UnsignedByteType> imagePlus = new ImgPlus<>(image);
+        StainMatrixIJ2 stainMatrix = hematoxylinEosinDab();
+
+        ImgPlus<UnsignedByteType>[] expected = stainMatrix.compute(imagePlus);
+        DeconvolutionResult result = stainMatrix.computeWithReconstructions(imagePlus, StainImgFactory.direct(),
+                new int[]{StainMatrixIJ2.STAIN1, StainMatrixIJ2.STAIN2, StainMatrixIJ2.STAIN3}, new int[]{StainMatrixIJ2.STAIN3});
+
+        assertEquals(2, result.getReconstructions().length);
+        for (int stain = 0; stain < 3; stain++) {
+            Cursor<UnsignedByteType> expectedCursor = Views.flatIterable(expected[stain]).cursor();
+            for (UnsignedByteType pixel : Views.flatIterable(result.getStainImages()[stain])) {
+                assertEquals(expectedCursor.next().get(), pixel.get());
+            }
+        }
+        double[] q = stainMatrix.initComputation(false);
+        double[] dabVector = stainMatrix.getNormalizedOpticalDensities()[StainMatrixIJ2.STAIN3];
+        Cursor<ARGBType> input = Views.flatIterable(Converters.mergeARGB(image, ColorChannelOrder.RGB)).cursor();
+        Cursor<ARGBType> allStains = Views.flatIterable(result.getReconstructions()[0]).cursor();
+        Cursor<ARGBType> dabOnly = Views.flatIterable(result.getReconstructions()[1]).cursor();
+        while (input.hasNext()) {
+            int original = input.next().get();
+            int rebuilt = allStains.next().get();
+            assertEquals(ARGBType.red(original), ARGBType.red(rebuilt), 1);
+            assertEquals(ARGBType.green(original), ARGBType.green(rebuilt), 1);
+            assertEquals(ARGBType.blue(original), ARGBType.blue(rebuilt), 1);
+            // The DAB-only rendering holds the DAB absorption of the pixel spread over the channels by the DAB vector
+            double dab = StainMatrixIJ2.convertIntensityToAbsorption(ARGBType.red(original)) * q[6]
+                    + StainMatrixIJ2.convertIntensityToAbsorption(ARGBType.green(original)) * q[7]
+                    + StainMatrixIJ2.convertIntensityToAbsorption(ARGBType.blue(original)) * q[8];
+            int dabPixel = dabOnly.next().get();
+            assertEquals(StainMatrixIJ2.convertAbsorptionToColorValue(dab * dabVector[StainMatrixIJ2.R]), ARGBType.red(dabPixel));
+            assertEquals(StainMatrixIJ2.convertAbsorptionToColorValue(dab * dabVector[StainMatrixIJ2.G]), ARGBType.green(dabPixel));
+            assertEquals(StainMatrixIJ2.convertAbsorptionToColorValue(dab * dabVector[StainMatrixIJ2.B]), ARGBType.blue(dabPixel));
+        }
+    }
+
     /**
      * The original code did calculations, which were way slower than a simple lookup. This method ensures the logify
      * lookup still does what the original calculation intended.
@@ -107,4 +191,40 @@ public class StainMatrixIJ2Test {
             assertEquals(-((255.0 * Math.log((i + 1) / 255.0)) / Math.log(255.0)), StainMatrixIJ2.convertIntensityToAbsorption(i), 0.00001);
         }
     }
+
+    @Test
+    public void test16BitAbsorptionLookupMatches8Bit() {
+        for (int i = 0; i < 256; i++) {
+            assertEquals(StainMatrixIJ2.convertIntensityToAbsorption(i), StainMatrixIJ2.convertIntensityToAbsorption16(i * 257), 0.00001);
+        }
+        assertEquals(StainMatrixIJ2.convertAbsorptionToIntensity(100.0) * 257, StainMatrixIJ2.convertAbsorptionToIntensity16(100.0), 257);
+    }
+
+    @Test
+    public void test16BitInputMatches8BitInput() {
+        ArrayImg<UnsignedByteType, ByteArray> image = ArrayImgs.unsignedBytes(40, 30, 3);
+        ArrayImg<UnsignedShortType, ShortArray> image16 = ArrayImgs.unsignedShorts(40, 30, 3);
+        Random random = new Random(2);
+        Cursor<UnsignedShortType> cursor16 = image16.cursor();
+        for (UnsignedByteType pixel : image) {
+            pixel.set(random.nextInt(256));
+            cursor16.next().set(pixel.get() * 257);
+        }
+        StainMatrixIJ2 stainMatrix = hematoxylinEosinDab();
+
+        ImgPlus<UnsignedByteType>[] expected = stainMatrix.compute(new ImgPlus<>(image));
+        ImgPlus<UnsignedByteType>[] actual = stainMatrix.computeFrom16Bit(new ImgPlus<>(image16));
+        ImgPlus<FloatType>[] opticalDensities = stainMatrix.computeOpticalDensitiesFrom16Bit(new ImgPlus<>(image16));
+
+        for (int stain = 0; stain < 3; stain++) {
+            Cursor<UnsignedByteType> expectedCursor = Views.flatIterable(expected[stain]).cursor();
+            Cursor<FloatType> opticalDensity = Views.flatIterable(opticalDensities[stain]).cursor();
+            for (UnsignedByteType pixel : Views.flatIterable(actual[stain])) {
+                assertEquals(expectedCursor.next().get(), pixel.get(), 1);
+                // An optical density of 0 is full intensity, and each unit of optical density lets through a tenth
+                double intensity = 255 * Math.pow(10, -opticalDensity.next().get());
+                assertEquals(Math.min(255, intensity), pixel.get(), 1);
+            }
+        }
+    }
 }
@@ -0,0 +1,53 @@
+package sc.fiji.colorDeconvolution;
+
+import static org.junit.Assert.assertEquals;
+import static sc.fiji.colorDeconvolution.TestImages.randomImage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+public class StainMatrixSweepTest {
+
+    @Test
+    public void testSweepMatchesSeparateComputations() {
+        ImgPlus<UnsignedByteType> image = randomImage(40, 30);
+        List<StainMatrixIJ2> stainMatrices = new ArrayList<>();
+        for (int step = 0; step < 4; step++) {
+            StainMatrixIJ2 stainMatrix = new StainMatrixIJ2();
+            stainMatrix.init("step " + step, 0.66645944 + step * 0.01, 0.6332006, 0.39355922, 0.25378, 0.737415 - step * 0.01, 0.6259511, 0, 0, 0);
+            stainMatrices.add(stainMatrix);
+        }
+
+        StainMatrixSweep sweep = new StainMatrixSweep(stainMatrices);
+        List<ImgPlus<UnsignedByteType>[]> swept = sweep.compute(image);
+        List<StainHistogram[]> histograms = sweep.computeHistograms(image);
+
+        assertEquals(4, swept.size());
+        assertEquals(4, histograms.size());
+        for (int matrix = 0; matrix < 4; matrix++) {
+            ImgPlus<UnsignedByteType>[] expected = stainMatrices.get(matrix).compute(image);
+            for (int stain = 0; stain < 3; stain++) {
+                long[] expectedCounts = new long[256];
+                Cursor<UnsignedByteType> expectedCursor = Views.flatIterable(expected[stain]).cursor();
+                Cursor<UnsignedByteType> actualCursor = Views.flatIterable(swept.get(matrix)[stain]).cursor();
+                while (expectedCursor.hasNext()) {
+                    int intensity = expectedCursor.next().get();
+                    assertEquals(intensity, actualCursor.next().get());
+                    expectedCounts[intensity]++;
+                }
+                long[] actualCounts = histograms.get(matrix)[stain].getCounts();
+                for (int intensity = 0; intensity < 256; intensity++) {
+                    assertEquals(expectedCounts[intensity], actualCounts[intensity]);
+                }
+                assertEquals(40 * 30, histograms.get(matrix)[stain].getPixelCount());
+            }
+        }
+    }
+}
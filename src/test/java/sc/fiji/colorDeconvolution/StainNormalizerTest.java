@@ -0,0 +1,88 @@
+package sc.fiji.colorDeconvolution;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static sc.fiji.colorDeconvolution.TestImages.hematoxylinEosinDab;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.converter.ColorChannelOrder;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+public class StainNormalizerTest {
+
+    @Test
+    public void testPixelIsUnchangedWhenNormalizedToItsOwnStains() {
+        StainMatrixIJ2 stainMatrix = hematoxylinEosinDab();
+        double[] q = stainMatrix.initComputation(false);
+        double[][] normOD = stainMatrix.getNormalizedOpticalDensities();
+        double[] reconstruction = new double[9];
+        for (int channel = 0; channel < 3; channel++) {
+            for (int stain = 0; stain < 3; stain++) {
+                reconstruction[channel * 3 + stain] = normOD[stain][channel];
+            }
+        }
+
+        for (int r = 0; r < 256; r += 15) {
+            for (int g = 0; g < 256; g += 15) {
+                for (int b = 0; b < 256; b += 15) {
+                    int normalized = StainNormalizer.normalizePixel(ARGBType.rgba(r, g, b, 255), q, reconstruction, new double[3]);
+                    assertEquals(r, ARGBType.red(normalized), 1);
+                    assertEquals(g, ARGBType.green(normalized), 1);
+                    assertEquals(b, ARGBType.blue(normalized), 1);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDoublingAStainDarkensThePixel() {
+        StainMatrixIJ2 stainMatrix = hematoxylinEosinDab();
+        double[] q = stainMatrix.initComputation(false);
+        double[][] normOD = stainMatrix.getNormalizedOpticalDensities();
+        double[] reconstruction = new double[9];
+        for (int channel = 0; channel < 3; channel++) {
+            for (int stain = 0; stain < 3; stain++) {
+                reconstruction[channel * 3 + stain] = (stain == 0 ? 2 : 1) * normOD[stain][channel];
+            }
+        }
+
+        int pixel = ARGBType.rgba(120, 110, 160, 255);
+        int normalized = StainNormalizer.normalizePixel(pixel, q, reconstruction, new double[3]);
+        assertTrue(ARGBType.red(normalized) < 120);
+        assertTrue(ARGBType.green(normalized) < 110);
+    }
+
+    @Test
+    public void testImageNormalizedToItselfIsUnchanged() {
+        ArrayImg<UnsignedByteType, ByteArray> image = ArrayImgs.unsignedBytes(64, 64, 3);
+        Random random = new Random(11);
+        for (UnsignedByteType pixel : image) {
+            pixel.set(40 + random.nextInt(180));
+        }
+        ImgPlus<UnsignedByteType> imp = new ImgPlus<>(image);
+        StainMatrixIJ2 stainMatrix = hematoxylinEosinDab();
+
+        ImgPlus<ARGBType> normalized = StainNormalizer.fromReference(imp, stainMatrix).normalize(imp, stainMatrix);
+
+        Cursor<ARGBType> expected = Views.flatIterable(Converters.mergeARGB(image, ColorChannelOrder.RGB)).cursor();
+        Cursor<ARGBType> actual = Views.flatIterable(normalized).cursor();
+        while (expected.hasNext()) {
+            int expectedColor = expected.next().get();
+            int actualColor = actual.next().get();
+            assertEquals(ARGBType.red(expectedColor), ARGBType.red(actualColor), 1);
+            assertEquals(ARGBType.green(expectedColor), ARGBType.green(actualColor), 1);
+            assertEquals(ARGBType.blue(expectedColor), ARGBType.blue(actualColor), 1);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package sc.fiji.colorDeconvolution;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static sc.fiji.colorDeconvolution.TestImages.hematoxylinEosinDab;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+public class StainProjectionTest {
+
+    @Test
+    public void testThreeStainInverseMatchesStainMatrix() {
+        StainParameters values = StainParameters.H_E_DAB;
+        StainMatrixIJ2 stainMatrix = hematoxylinEosinDab();
+
+        StainProjection projection = StainProjection.fromStainVectors(values.rgb1(), values.rgb2(), values.rgb3());
+
+        assertArrayEquals(stainMatrix.initComputation(false), projection.getInverse(), 1e-9);
+    }
+
+    @Test
+    public void testPseudoInverseRecoversFourStainsInFiveChannels() {
+        double[][] stainVectors = {
+                {0.65, 0.70, 0.29, 0.10, 0.05},
+                {0.07, 0.99, 0.11, 0.30, 0.20},
+                {0.27, 0.57, 0.78, 0.02, 0.40},
+                {0.10, 0.20, 0.30, 0.90, 0.60}};
+        StainProjection projection = StainProjection.fromStainVectors(stainVectors);
+        assertEquals(5, projection.numChannels());
+        assertEquals(4, projection.numStains());
+
+        double[] expected = {12.5, 80.0, 3.25, 41.0};
+        double[] absorption = new double[5];
+        for (int stain = 0; stain < 4; stain++) {
+            double length = 0;
+            for (double value : stainVectors[stain]) {
+                length += value * value;
+            }
+            length = Math.sqrt(length);
+            for (int channel = 0; channel < 5; channel++) {
+                absorption[channel] += expected[stain] * stainVectors[stain][channel] / length;
+            }
+        }
+
+        double[] concentrations = new double[4];
+        projection.project(absorption, concentrations);
+        assertArrayEquals(expected, concentrations, 1e-9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLinearlyDependentStainsAreRejected() {
+        StainProjection.fromStainVectors(new double[]{1, 2, 3}, new double[]{2, 4, 6});
+    }
+
+    @Test
+    public void testComputeMatchesStainMatrixCompute() {
+        StainMatrixIJ2 stainMatrix = hematoxylinEosinDab();
+
+        ArrayImg<UnsignedByteType, ByteArray> image = ArrayImgs.unsignedBytes(64, 48, 3);
+        Random random = new Random(42);
+        for (UnsignedByteType pixel : image) {
+            pixel.set(random.nextInt(256));
+        }
+
+        ImgPlus<UnsignedByteType>[] expected = stainMatrix.compute(new ImgPlus<>(image));
+        ImgPlus<UnsignedByteType>[] actual = stainMatrix.toProjection().compute(image);
+
+        assertEquals(3, actual.length);
+        for (int stain = 0; stain < 3; stain++) {
+            Cursor<UnsignedByteType> expectedCursor = Views.flatIterable(expected[stain]).cursor();
+            Cursor<UnsignedByteType> actualCursor = Views.flatIterable(actual[stain]).cursor();
+            while (expectedCursor.hasNext()) {
+                assertEquals(expectedCursor.next().get(), actualCursor.next().get());
+            }
+        }
+    }
+}
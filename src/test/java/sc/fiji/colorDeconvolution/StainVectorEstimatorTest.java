@@ -0,0 +1,123 @@
+package sc.fiji.colorDeconvolution;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static sc.fiji.colorDeconvolution.TestImages.normalized;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imagej.ImgPlus;
+import net.imglib2.RandomAccess;
+import net.imglib2.converter.ColorChannelOrder;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+public class StainVectorEstimatorTest {
+
+    private static final double[] HAEMATOXYLIN = normalized(StainParameters.Constants.HAEM_MATRIX);
+    private static final double[] DAB = normalized(StainParameters.Constants.DAB_MATRIX);
+
+    @Test
+    public void testEstimateFromAbsorptions() {
+        Random random = new Random(3);
+        int count = 5000;
+        double[] samples = new double[count * 3];
+        for (int pixel = 0; pixel < count; pixel++) {
+            double[] absorption = mix(random);
+            System.arraycopy(absorption, 0, samples, pixel * 3, 3);
+        }
+
+        double[][] stains = StainVectorEstimator.estimate(samples, count);
+
+        assertSimilar(HAEMATOXYLIN, stains[0]);
+        assertSimilar(DAB, stains[1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeOpticalDensitiesAreRejected() {
+        // The most extreme direction in the plane of these samples points to negative red and green absorptions
+        double[][] pixels = {{1, 0, 0}, {0, 1, 0}, {-1, -1, 0}};
+        int[] counts = {45, 45, 10};
+        double[] samples = new double[100 * 3];
+        int pixel = 0;
+        for (int kind = 0; kind < pixels.length; kind++) {
+            for (int i = 0; i < counts[kind]; i++, pixel++) {
+                System.arraycopy(pixels[kind], 0, samples, pixel * 3, 3);
+            }
+        }
+
+        StainVectorEstimator.estimate(samples, 100);
+    }
+
+    @Test
+    public void testEstimateFromImage() {
+        int width = 300;
+        int height = 200;
+        ArrayImg<UnsignedByteType, ByteArray> image = ArrayImgs.unsignedBytes(width, height, 3);
+        RandomAccess<UnsignedByteType> access = image.randomAccess();
+        Random random = new Random(5);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // Leave a band of white background, which should be ignored
+                double[] absorption = x < 50 ? new double[3] : mix(random);
+                access.setPosition(x, 0);
+                access.setPosition(y, 1);
+                for (int channel = 0; channel < 3; channel++) {
+                    double intensity = Math.exp(-absorption[channel] * StainMatrixIJ2.LOG_255 / 255.0) * 255.0 - 1;
+                    access.setPosition(channel, 2);
+                    access.get().set((int) Math.max(0, Math.min(255, Math.round(intensity))));
+                }
+            }
+        }
+
+        StainMatrixIJ2 stainMatrix = new StainVectorEstimator().estimateStainMatrix(new ImgPlus<>(image));
+        stainMatrix.initComputation(false);
+        double[][] stains = stainMatrix.getNormalizedOpticalDensities();
+
+        assertSimilar(HAEMATOXYLIN, stains[StainMatrixIJ2.STAIN1]);
+        assertSimilar(DAB, stains[StainMatrixIJ2.STAIN2]);
+    }
+
+    @Test
+    public void testImageWithoutTissueIsReported() {
+        ArrayImg<UnsignedByteType, ByteArray> image = ArrayImgs.unsignedBytes(64, 64, 3);
+        for (UnsignedByteType pixel : image) {
+            pixel.set(255);
+        }
+
+        assertFalse(new StainVectorEstimator().estimateIfTissue(
+                Converters.mergeARGB(image, ColorChannelOrder.RGB)).isPresent());
+    }
+
+    /**
+     * A random tissue pixel: a third pure haematoxylin, a third pure DAB and a third a mix of both.
+     */
+    private static double[] mix(Random random) {
+        double amount1 = 40 + random.nextDouble() * 80;
+        double amount2 = 40 + random.nextDouble() * 80;
+        int kind = random.nextInt(3);
+        if (kind == 0) {
+            amount2 = 0;
+        } else if (kind == 1) {
+            amount1 = 0;
+        }
+        double[] absorption = new double[3];
+        for (int channel = 0; channel < 3; channel++) {
+            absorption[channel] = amount1 * HAEMATOXYLIN[channel] + amount2 * DAB[channel];
+        }
+        return absorption;
+    }
+
+    private static void assertSimilar(double[] expected, double[] actual) {
+        double dot = 0;
+        for (int channel = 0; channel < 3; channel++) {
+            dot += expected[channel] * actual[channel];
+        }
+        assertTrue("Estimated stain vector differs too much, cosine similarity is " + dot, dot > 0.99);
+    }
+}
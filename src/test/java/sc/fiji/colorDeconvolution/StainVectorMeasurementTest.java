@@ -0,0 +1,96 @@
+package sc.fiji.colorDeconvolution;
+
+import static org.junit.Assert.assertEquals;
+import static sc.fiji.colorDeconvolution.TestImages.normalized;
+
+import org.junit.Test;
+
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import net.imglib2.RandomAccess;
+import net.imglib2.converter.ColorChannelOrder;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+public class StainVectorMeasurementTest {
+
+    @Test
+    public void testMeasureEachStainFromItsOwnRegion() {
+        int width = 200;
+        int height = 100;
+        double[] haematoxylin = normalized(StainParameters.Constants.HAEM_MATRIX);
+        double[] dab = normalized(StainParameters.Constants.DAB_MATRIX);
+        ArrayImg<UnsignedByteType, ByteArray> image = ArrayImgs.unsignedBytes(width, height, 3);
+        RandomAccess<UnsignedByteType> access = image.randomAccess();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // Haematoxylin on the left, DAB on the right, both getting darker from top to bottom
+                double[] stain = x < width / 2 ? haematoxylin : dab;
+                double amount = 20 + y;
+                access.setPosition(x, 0);
+                access.setPosition(y, 1);
+                for (int channel = 0; channel < 3; channel++) {
+                    double intensity = Math.exp(-amount * stain[channel] * StainMatrixIJ2.LOG_255 / 255.0) * 255.0 - 1;
+                    access.setPosition(channel, 2);
+                    access.get().set((int) Math.round(intensity));
+                }
+            }
+        }
+
+        double[] measuredHaematoxylin = StainVectorMeasurement.meanOpticalDensity(
+                Converters.mergeARGB(image, ColorChannelOrder.RGB), new Roi(10, 0, 80, height));
+        // A region that sticks out of the image only measures the pixels inside it
+        double[] measuredDab = StainVectorMeasurement.meanOpticalDensity(
+                Converters.mergeARGB(image, ColorChannelOrder.RGB), new Roi(width - 50, -20, 100, height + 40));
+
+        for (int channel = 0; channel < 3; channel++) {
+            assertEquals(haematoxylin[channel], measuredHaematoxylin[channel], 0.01);
+            assertEquals(dab[channel], measuredDab[channel], 0.01);
+        }
+    }
+
+    @Test
+    public void testOvalAndPolygonOnlyMeasureTheirInside() {
+        int size = 100;
+        double[] haematoxylin = normalized(StainParameters.Constants.HAEM_MATRIX);
+        double[] dab = normalized(StainParameters.Constants.DAB_MATRIX);
+        ArrayImg<UnsignedByteType, ByteArray> image = ArrayImgs.unsignedBytes(size, size, 3);
+        RandomAccess<UnsignedByteType> access = image.randomAccess();
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                // A disc of haematoxylin, surrounded by DAB that is inside the bounds of the regions
+                double dx = x + 0.5 - size / 2;
+                double dy = y + 0.5 - size / 2;
+                double[] stain = dx * dx + dy * dy < 40 * 40 ? haematoxylin : dab;
+                access.setPosition(x, 0);
+                access.setPosition(y, 1);
+                for (int channel = 0; channel < 3; channel++) {
+                    double intensity = Math.exp(-80 * stain[channel] * StainMatrixIJ2.LOG_255 / 255.0) * 255.0 - 1;
+                    access.setPosition(channel, 2);
+                    access.get().set((int) Math.round(intensity));
+                }
+            }
+        }
+
+        double[] measuredInOval = StainVectorMeasurement.meanOpticalDensity(
+                Converters.mergeARGB(image, ColorChannelOrder.RGB), new OvalRoi(15, 15, 70, 70));
+        double[] measuredInTriangle = StainVectorMeasurement.meanOpticalDensity(
+                Converters.mergeARGB(image, ColorChannelOrder.RGB),
+                new PolygonRoi(new int[]{50, 80, 20}, new int[]{15, 65, 65}, 3, Roi.POLYGON));
+
+        for (int channel = 0; channel < 3; channel++) {
+            assertEquals(haematoxylin[channel], measuredInOval[channel], 0.01);
+            assertEquals(haematoxylin[channel], measuredInTriangle[channel], 0.01);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegionOutsideImageIsRejected() {
+        ArrayImg<UnsignedByteType, ByteArray> image = ArrayImgs.unsignedBytes(20, 20, 3);
+        StainVectorMeasurement.meanOpticalDensity(Converters.mergeARGB(image, ColorChannelOrder.RGB), new Roi(30, 30, 10, 10));
+    }
+}
@@ -0,0 +1,314 @@
+package sc.fiji.colorDeconvolution;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static sc.fiji.colorDeconvolution.TiffStripReader.BITS_PER_SAMPLE;
+import static sc.fiji.colorDeconvolution.TiffStripReader.BIG_TIFF;
+import static sc.fiji.colorDeconvolution.TiffStripReader.CLASSIC_TIFF;
+import static sc.fiji.colorDeconvolution.TiffStripReader.COMPRESSION;
+import static sc.fiji.colorDeconvolution.TiffStripReader.IMAGE_LENGTH;
+import static sc.fiji.colorDeconvolution.TiffStripReader.IMAGE_WIDTH;
+import static sc.fiji.colorDeconvolution.TiffStripReader.PHOTOMETRIC_INTERPRETATION;
+import static sc.fiji.colorDeconvolution.TiffStripReader.PHOTOMETRIC_RGB;
+import static sc.fiji.colorDeconvolution.TiffStripReader.PLANAR_CONFIGURATION;
+import static sc.fiji.colorDeconvolution.TiffStripReader.ROWS_PER_STRIP;
+import static sc.fiji.colorDeconvolution.TiffStripReader.SAMPLES_PER_PIXEL;
+import static sc.fiji.colorDeconvolution.TiffStripReader.STRIP_BYTE_COUNTS;
+import static sc.fiji.colorDeconvolution.TiffStripReader.STRIP_OFFSETS;
+import static sc.fiji.colorDeconvolution.TiffStripReader.TILE_BYTE_COUNTS;
+import static sc.fiji.colorDeconvolution.TiffStripReader.TILE_LENGTH;
+import static sc.fiji.colorDeconvolution.TiffStripReader.TILE_OFFSETS;
+import static sc.fiji.colorDeconvolution.TiffStripReader.TILE_WIDTH;
+import static sc.fiji.colorDeconvolution.TiffStripReader.TYPE_LONG;
+import static sc.fiji.colorDeconvolution.TiffStripReader.TYPE_LONG8;
+import static sc.fiji.colorDeconvolution.TiffStripReader.TYPE_SHORT;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class StreamingDeconvolutionTest {
+
+    @Test
+    public void testStreamingMatchesExpectedImages() throws IOException {
+        StainMatrixIJ2 stainMatrix = new StainMatrixIJ2();
+        stainMatrix.init("test stain", 0.66645944, 0.6332006, 0.39355922, 0.25378, 0.737415, 0.6259511, 0, 0, 0);
+
+        Path target = Files.createDirectories(Paths.get("target"));
+        Path[] outputs = {
+                target.resolve("streaming-outputSmallDeconvoluted1.tif"),
+                target.resolve("streaming-outputSmallDeconvoluted2.tif"),
+                target.resolve("streaming-outputSmallDeconvoluted3.tif")};
+        new StreamingDeconvolution(stainMatrix).deconvolve(Paths.get("src/test/resources/small2ColorImage.tif"),
+                outputs[0], outputs[1], outputs[2]);
+
+        for (int stain = 0; stain < 3; stain++) {
+            byte[] expected = readPixels(Paths.get("src/test/resources/expectedSmallDeconvoluted" + (stain + 1) + ".tif"));
+            assertArrayEquals(expected, readPixels(outputs[stain]));
+        }
+    }
+
+    @Test
+    public void testWrittenStripsCanBeReadBack() throws IOException {
+        byte[] rgb = new byte[7 * 5 * 3];
+        for (int i = 0; i < rgb.length; i++) {
+            rgb[i] = (byte) (i * 7);
+        }
+        Path file = Files.createDirectories(Paths.get("target")).resolve("streaming-roundTrip.tif");
+        try (TiffStripWriter writer = new TiffStripWriter(file, 7, 5, 3, 2)) {
+            writer.writeRows(rgb, 2);
+            byte[] rest = new byte[3 * 7 * 3];
+            System.arraycopy(rgb, 2 * 7 * 3, rest, 0, rest.length);
+            writer.writeRows(rest, 3);
+        }
+
+        try (TiffStripReader reader = new TiffStripReader(file)) {
+            assertEquals(7, reader.getWidth());
+            assertEquals(5, reader.getHeight());
+            assertEquals(3, reader.getSamplesPerPixel());
+            byte[] region = new byte[3 * 2 * 3];
+            reader.readRegion(2, 1, 3, 2, region);
+            for (int row = 0; row < 2; row++) {
+                for (int sample = 0; sample < 9; sample++) {
+                    assertEquals(rgb[((row + 1) * 7 + 2) * 3 + sample], region[row * 9 + sample]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTiledFilesCanBeRead() throws IOException {
+        // Neither dimension is a multiple of the tile size, so the tiles at the right and bottom are partly padding
+        byte[] rgb = pattern(37, 21);
+        Path file = Files.createDirectories(Paths.get("target")).resolve("streaming-tiled.tif");
+        writeTiff(file, rgb, 37, 21, 16, false, ByteOrder.LITTLE_ENDIAN);
+
+        try (TiffStripReader reader = new TiffStripReader(file)) {
+            assertTrue(reader.isTiled());
+            assertEquals(16, reader.getBlockHeight());
+            assertReadable(reader, rgb, 37, 21);
+        }
+    }
+
+    @Test
+    public void testBigTiffFilesCanBeRead() throws IOException {
+        byte[] rgb = pattern(37, 21);
+        Path target = Files.createDirectories(Paths.get("target"));
+        Path striped = target.resolve("streaming-bigStriped.tif");
+        Path tiled = target.resolve("streaming-bigTiled.tif");
+        writeTiff(striped, rgb, 37, 21, 0, true, ByteOrder.BIG_ENDIAN);
+        writeTiff(tiled, rgb, 37, 21, 16, true, ByteOrder.LITTLE_ENDIAN);
+
+        try (TiffStripReader reader = new TiffStripReader(striped)) {
+            assertEquals(false, reader.isTiled());
+            assertReadable(reader, rgb, 37, 21);
+        }
+        try (TiffStripReader reader = new TiffStripReader(tiled)) {
+            assertTrue(reader.isTiled());
+            assertReadable(reader, rgb, 37, 21);
+        }
+    }
+
+    @Test
+    public void testReadFailureIsReportedAfterPendingWrites() throws IOException {
+        // Large enough to be deconvolved in two blocks, of which the second one is cut off
+        int width = 1024;
+        int height = 2048;
+        byte[] rgb = pattern(width, height);
+        Path target = Files.createDirectories(Paths.get("target"));
+        Path file = target.resolve("streaming-truncated.tif");
+        writeTiff(file, rgb, width, height, 0, false, ByteOrder.LITTLE_ENDIAN);
+        byte[] written = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(written, written.length - width * 3 * 100));
+
+        StainMatrixIJ2 stainMatrix = new StainMatrixIJ2();
+        stainMatrix.init("test stain", 0.66645944, 0.6332006, 0.39355922, 0.25378, 0.737415, 0.6259511, 0, 0, 0);
+        try {
+            new StreamingDeconvolution(stainMatrix).deconvolve(file, target.resolve("streaming-truncated1.tif"),
+                    target.resolve("streaming-truncated2.tif"), target.resolve("streaming-truncated3.tif"));
+            fail("expected EOFException");
+        } catch (EOFException e) {
+            // The writers were only closed after the first block was written to each of them
+            assertEquals(3, e.getSuppressed().length);
+            for (Throwable closeFailure : e.getSuppressed()) {
+                assertEquals("Only 1024 of 2048 rows were written", closeFailure.getMessage());
+            }
+        }
+    }
+
+    private static void assertReadable(TiffStripReader reader, byte[] rgb, int width, int height) throws IOException {
+        assertEquals(width, reader.getWidth());
+        assertEquals(height, reader.getHeight());
+        assertEquals(3, reader.getSamplesPerPixel());
+        assertEquals(PHOTOMETRIC_RGB, reader.getPhotometricInterpretation());
+
+        byte[] all = new byte[rgb.length];
+        reader.readRows(0, height, all);
+        assertArrayEquals(rgb, all);
+
+        // A region that crosses the borders of the strips or tiles
+        byte[] region = new byte[20 * 9 * 3];
+        reader.readRegion(10, 11, 20, 9, region);
+        for (int row = 0; row < 9; row++) {
+            for (int sample = 0; sample < 20 * 3; sample++) {
+                assertEquals(rgb[((row + 11) * width + 10) * 3 + sample], region[row * 20 * 3 + sample]);
+            }
+        }
+    }
+
+    private static byte[] pattern(int width, int height) {
+        byte[] rgb = new byte[width * height * 3];
+        for (int i = 0; i < rgb.length; i++) {
+            rgb[i] = (byte) (i * 7 + i / 253);
+        }
+        return rgb;
+    }
+
+    /**
+     * Write an uncompressed RGB TIFF in another layout than {@link TiffStripWriter} does. The image directory comes
+     * before the pixels, so cutting off the end of the file only removes pixels.
+     *
+     * @param tileSize the width and height of the tiles, or 0 for strips of 4 rows
+     */
+    private static void writeTiff(Path file, byte[] rgb, int width, int height, int tileSize, boolean bigTiff,
+                                  ByteOrder order) throws IOException {
+        int rowLength = width * 3;
+        List<byte[]> blocks = new ArrayList<>();
+        if (tileSize == 0) {
+            for (int y = 0; y < height; y += 4) {
+                blocks.add(Arrays.copyOfRange(rgb, y * rowLength, Math.min(height, y + 4) * rowLength));
+            }
+        } else {
+            for (int tileY = 0; tileY < height; tileY += tileSize) {
+                for (int tileX = 0; tileX < width; tileX += tileSize) {
+                    byte[] tile = new byte[tileSize * tileSize * 3];
+                    int tileRowLength = (Math.min(width, tileX + tileSize) - tileX) * 3;
+                    for (int y = tileY; y < Math.min(height, tileY + tileSize); y++) {
+                        System.arraycopy(rgb, y * rowLength + tileX * 3, tile, (y - tileY) * tileSize * 3, tileRowLength);
+                    }
+                    blocks.add(tile);
+                }
+            }
+        }
+
+        int headerSize = bigTiff ? 16 : 8;
+        int directorySpace = 512 + 16 * blocks.size();
+        long[] offsets = new long[blocks.size()];
+        long[] byteCounts = new long[blocks.size()];
+        long position = headerSize + directorySpace;
+        for (int block = 0; block < blocks.size(); block++) {
+            offsets[block] = position;
+            byteCounts[block] = blocks.get(block).length;
+            position += byteCounts[block];
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) position).order(order);
+        byte byteOrder = order == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M';
+        buffer.put(byteOrder).put(byteOrder);
+        if (bigTiff) {
+            buffer.putShort((short) BIG_TIFF).putShort((short) 8).putShort((short) 0).putLong(headerSize);
+        } else {
+            buffer.putShort((short) CLASSIC_TIFF).putInt(headerSize);
+        }
+
+        List<long[]> entries = new ArrayList<>();
+        entries.add(new long[]{IMAGE_WIDTH, TYPE_SHORT, width});
+        entries.add(new long[]{IMAGE_LENGTH, TYPE_SHORT, height});
+        entries.add(new long[]{BITS_PER_SAMPLE, TYPE_SHORT, 8, 8, 8});
+        entries.add(new long[]{COMPRESSION, TYPE_SHORT, 1});
+        entries.add(new long[]{PHOTOMETRIC_INTERPRETATION, TYPE_SHORT, PHOTOMETRIC_RGB});
+        int offsetType = bigTiff ? TYPE_LONG8 : TYPE_LONG;
+        if (tileSize == 0) {
+            entries.add(withValues(new long[]{STRIP_OFFSETS, offsetType}, offsets));
+            entries.add(new long[]{SAMPLES_PER_PIXEL, TYPE_SHORT, 3});
+            entries.add(new long[]{ROWS_PER_STRIP, TYPE_SHORT, 4});
+            entries.add(withValues(new long[]{STRIP_BYTE_COUNTS, offsetType}, byteCounts));
+            entries.add(new long[]{PLANAR_CONFIGURATION, TYPE_SHORT, 1});
+        } else {
+            entries.add(new long[]{SAMPLES_PER_PIXEL, TYPE_SHORT, 3});
+            entries.add(new long[]{PLANAR_CONFIGURATION, TYPE_SHORT, 1});
+            entries.add(new long[]{TILE_WIDTH, TYPE_SHORT, tileSize});
+            entries.add(new long[]{TILE_LENGTH, TYPE_SHORT, tileSize});
+            entries.add(withValues(new long[]{TILE_OFFSETS, offsetType}, offsets));
+            entries.add(withValues(new long[]{TILE_BYTE_COUNTS, offsetType}, byteCounts));
+        }
+
+        int entrySize = bigTiff ? 20 : 12;
+        int valueSize = bigTiff ? 8 : 4;
+        // Values that do not fit in their entry follow the directory
+        int extra = headerSize + (bigTiff ? 8 : 2) + entries.size() * entrySize + valueSize;
+        buffer.position(headerSize);
+        if (bigTiff) {
+            buffer.putLong(entries.size());
+        } else {
+            buffer.putShort((short) entries.size());
+        }
+        for (long[] entry : entries) {
+            int type = (int) entry[1];
+            int count = entry.length - 2;
+            int typeSize = type == TYPE_SHORT ? 2 : type == TYPE_LONG ? 4 : 8;
+            buffer.putShort((short) entry[0]).putShort((short) type);
+            if (bigTiff) {
+                buffer.putLong(count);
+            } else {
+                buffer.putInt(count);
+            }
+            int valuePosition = buffer.position();
+            if (count * typeSize > valueSize) {
+                if (bigTiff) {
+                    buffer.putLong(extra);
+                } else {
+                    buffer.putInt(extra);
+                }
+                valuePosition = extra;
+                extra += count * typeSize;
+            } else {
+                buffer.position(valuePosition + valueSize);
+            }
+            for (int i = 0; i < count; i++) {
+                int at = valuePosition + i * typeSize;
+                if (type == TYPE_SHORT) {
+                    buffer.putShort(at, (short) entry[i + 2]);
+                } else if (type == TYPE_LONG) {
+                    buffer.putInt(at, (int) entry[i + 2]);
+                } else {
+                    buffer.putLong(at, entry[i + 2]);
+                }
+            }
+        }
+        if (extra > headerSize + directorySpace) {
+            throw new IllegalStateException("The image directory does not fit before the pixels");
+        }
+
+        for (int block = 0; block < blocks.size(); block++) {
+            buffer.position((int) offsets[block]);
+            buffer.put(blocks.get(block));
+        }
+        Files.write(file, buffer.array());
+    }
+
+    private static long[] withValues(long[] tagAndType, long[] values) {
+        long[] entry = Arrays.copyOf(tagAndType, 2 + values.length);
+        System.arraycopy(values, 0, entry, 2, values.length);
+        return entry;
+    }
+
+    private static byte[] readPixels(Path file) throws IOException {
+        try (TiffStripReader reader = new TiffStripReader(file)) {
+            byte[] pixels = new byte[reader.getWidth() * reader.getHeight() * reader.getSamplesPerPixel()];
+            reader.readRows(0, reader.getHeight(), pixels);
+            return pixels;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package sc.fiji.colorDeconvolution;
+
+import java.util.Random;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+/**
+ * Images and stain matrices shared by the tests.
+ */
+final class TestImages {
+
+    private TestImages() {
+    }
+
+    /**
+     * @return an RGB image of random pixels, with the channels as the third dimension, the same for every call
+     */
+    static ImgPlus<UnsignedByteType> randomImage(int width, int height) {
+        ArrayImg<UnsignedByteType, ByteArray> image = ArrayImgs.unsignedBytes(width, height, 3);
+        Random random = new Random(7);
+        for (UnsignedByteType pixel : image) {
+            pixel.set(random.nextInt(256));
+        }
+        return new ImgPlus<>(image);
+    }
+
+    static StainMatrixIJ2 hematoxylinEosinDab() {
+        return stainMatrix(StainParameters.H_E_DAB);
+    }
+
+    static StainMatrixIJ2 stainMatrix(StainParameters values) {
+        StainMatrixIJ2 stainMatrix = new StainMatrixIJ2();
+        stainMatrix.init(values.description(), values.rgb1()[0], values.rgb1()[1], values.rgb1()[2], values.rgb2()[0], values.rgb2()[1], values.rgb2()[2], values.rgb3()[0], values.rgb3()[1], values.rgb3()[2]);
+        return stainMatrix;
+    }
+
+    /**
+     * @return the vector scaled to a length of 1
+     */
+    static double[] normalized(double[] vector) {
+        double length = Math.sqrt(vector[0] * vector[0] + vector[1] * vector[1] + vector[2] * vector[2]);
+        return new double[]{vector[0] / length, vector[1] / length, vector[2] / length};
+    }
+}
@@ -0,0 +1,104 @@
+package sc.fiji.colorDeconvolution;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static sc.fiji.colorDeconvolution.TestImages.hematoxylinEosinDab;
+import static sc.fiji.colorDeconvolution.TestImages.randomImage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+public class TileDeconvolutionTest {
+
+    @Test
+    public void testTilesMatchCompute() throws Exception {
+        ImgPlus<UnsignedByteType> imp = randomImage(250, 130);
+        StainMatrixIJ2 stainMatrix = hematoxylinEosinDab();
+        ImgPlus<UnsignedByteType>[] expected = stainMatrix.compute(imp);
+        List<Interval> consumed = new ArrayList<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            new TileDeconvolution(stainMatrix, 64, 64, 2).compute(imp, executor, tile -> {
+                consumed.add(tile.getInterval());
+                for (int stain = 0; stain < 3; stain++) {
+                    Cursor<UnsignedByteType> expectedCursor = Views.flatIterable(Views.interval(expected[stain], tile.getInterval())).cursor();
+                    for (UnsignedByteType pixel : Views.flatIterable(tile.getStainImages()[stain])) {
+                        assertEquals(expectedCursor.next().get(), pixel.get());
+                    }
+                }
+            }).get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdown();
+        }
+
+        // Consumed one at a time in row major order
+        List<Interval> tiles = Tiling.tiles(expected[0], 64, 64);
+        assertEquals(tiles.size(), consumed.size());
+        for (int tile = 0; tile < tiles.size(); tile++) {
+            assertEquals(tiles.get(tile).min(0), consumed.get(tile).min(0));
+            assertEquals(tiles.get(tile).min(1), consumed.get(tile).min(1));
+        }
+    }
+
+    @Test
+    public void testSingleThreadAndFailingConsumer() throws Exception {
+        ImgPlus<UnsignedByteType> imp = randomImage(100, 100);
+        List<Interval> consumed = new ArrayList<>();
+        IllegalStateException diskFull = new IllegalStateException("Disk full");
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            new TileDeconvolution(hematoxylinEosinDab(), 20, 20, 3).compute(imp, executor, tile -> {
+                if (consumed.size() == 4) {
+                    throw diskFull;
+                }
+                consumed.add(tile.getInterval());
+            }).get(1, TimeUnit.MINUTES);
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertSame(diskFull, e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(4, consumed.size());
+    }
+
+    @Test
+    public void testEmptyImageCompletes() throws Exception {
+        ImgPlus<UnsignedByteType> imp = new ImgPlus<>(ArrayImgs.unsignedBytes(0, 0, 3));
+        List<Interval> consumed = new ArrayList<>();
+
+        new TileDeconvolution(hematoxylinEosinDab(), 64, 64, 2).compute(imp, Runnable::run, tile -> consumed.add(tile.getInterval()))
+                .get(1, TimeUnit.MINUTES);
+
+        assertEquals(0, consumed.size());
+    }
+
+    @Test
+    public void testManyTilesOnTheCallingThread() throws Exception {
+        // Tens of thousands of tiles, each completed while the previous one is being submitted
+        ImgPlus<UnsignedByteType> imp = randomImage(600, 600);
+        List<Interval> consumed = new ArrayList<>();
+
+        new TileDeconvolution(hematoxylinEosinDab(), 4, 4, 2).compute(imp, Runnable::run, tile -> consumed.add(tile.getInterval()))
+                .get(1, TimeUnit.MINUTES);
+
+        assertEquals(150 * 150, consumed.size());
+    }
+}